@@ -5,9 +5,47 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Retail.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER
 
+#run the load test harness instead of the interactive program
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar LoadTest $USER"_DB" $PGPORT $USER --data=$DIR/../../data --customers=16 --managers=4 --admins=1 --duration=60
+
+#generate a larger dataset as CSV files, or stream it into an empty database
+#java -cp $DIR/../classes DataGenerator --out=$DIR/../../data/generated --users=1000000 --stores=10000 --orders=100000000
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar DataGenerator --db=$USER"_DB" --port=$PGPORT --user=$USER --orders=100000000
+
+#write a catalog snapshot that new instances map at startup (-Dretail.catalogSnapshot=<file>)
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar CatalogSnapshot $USER"_DB" $PGPORT $USER catalog.snapshot
+
+#print the customers within 30 miles of every store, over all customers of the database
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar CatchmentReport $USER"_DB" $PGPORT $USER 30
+
+#plan shipment waves for pending supply requests, then complete them once shipped
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar FulfillmentScheduler $USER"_DB" $PGPORT $USER plan
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar FulfillmentScheduler $USER"_DB" $PGPORT $USER complete
+
+#apply a supplier's delta file of storeID,productName,numberOfUnits,pricePerUnit lines
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar FeedSync $USER"_DB" $PGPORT $USER delta.csv
+
+#export the orders of store 1 as gzipped CSV, or as columnar file with --format=columnar
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar DataExport $USER"_DB" $PGPORT $USER store-orders 1 --out=orders.csv.gz --gzip
+
+#split the stock of a hot product over 8 stripes before a promotion, unstripe it after
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar StockStripes $USER"_DB" $PGPORT $USER stripe 1 "Hot Product" 8
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar StockStripes $USER"_DB" $PGPORT $USER unstripe 1 "Hot Product"
+
+#spread the stores over several local instances: list them in a shard map such as
+#  shard.east = 5433/retail_DB 1-500
+#  shard.west = 5434/retail_DB 501-1000
+#load every instance with create_db.sh, prune each to its own stores, then start Retail with the map
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar -Dretail.shardMap=shards.properties ShardMap $USER"_DB" 5433 $USER prune east
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar -Dretail.shardMap=shards.properties ShardMap $USER"_DB" $PGPORT $USER prune home
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar -Dretail.shardMap=shards.properties Retail $USER"_DB" $PGPORT $USER
+
+#run a script of operations without the menus, rows as TSV (or --format=json) on standard output,
+#failures and a timing summary on standard error; --batch=- reads the script from standard input
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER --batch=operations.txt > results.tsv
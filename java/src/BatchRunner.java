@@ -0,0 +1,399 @@
+/*
+ * Batch Runner
+ * ============
+ *
+ * Runs the Retail operations listed in a script without prompts, to replay
+ * traces of the interactive program or run operations from cron.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class reads a script with one operation per line, either as words,
+ * double quoted if they contain blanks,
+ *
+ *   login alice secret
+ *   placeOrder 12 "Hot Product" 3
+ *
+ * or as a JSON object naming the operation and its arguments
+ *
+ *   {"op": "placeOrder", "storeID": "12", "productName": "Hot Product", "units": 3}
+ *
+ * Blank lines and lines starting with # are skipped. The operations, with
+ * their arguments in order and optional ones in brackets:
+ *
+ *   login <name> <password>             logout
+ *   viewStores                          viewProducts <storeID>
+ *   placeOrder <storeID> <productName> <units>
+ *   findProduct <productName> <units>   viewRecentOrders [managerID]
+ *   updateProduct <storeID> <productName> <units> <price>, -1 leaves a field as it is
+ *   viewRecentUpdates [managerID]       viewPopularProducts [managerID]
+ *   viewPopularCustomers [managerID]    viewLiveSales [managerID]
+ *   supplyRequest <storeID> <productName> <units> <warehouseID> [price] [managerID]
+ *   viewCatchments [radius]
+ *
+ * The manager operations act on the stores of the logged in manager; an
+ * admin names the manager with managerID. An operation the logged in user
+ * may not run is rejected, as in the menus.
+ *
+ * The rows the operations output are written through a ResultWriter, as
+ * TSV or JSON lines labelled with the script line and operation. What the
+ * operations print besides, prompts and confirmations, is held back; the
+ * messages of a rejected or failed operation are reported on standard error
+ * with its line. The run ends with the number, latency percentiles,
+ * rejections and errors of every operation on standard error.
+ *
+ */
+public class BatchRunner {
+
+   enum Operation {
+      LOGIN("login", 0, "name", "password"),
+      LOGOUT("logout", 0),
+      VIEW_STORES("viewStores", 1),
+      VIEW_PRODUCTS("viewProducts", 1, "storeID"),
+      PLACE_ORDER("placeOrder", 1, "storeID", "productName", "units"),
+      FIND_PRODUCT("findProduct", 1, "productName", "units"),
+      VIEW_RECENT_ORDERS("viewRecentOrders", 1, "[managerID]"),
+      UPDATE_PRODUCT("updateProduct", 2, "storeID", "productName", "units", "price"),
+      VIEW_RECENT_UPDATES("viewRecentUpdates", 2, "[managerID]"),
+      VIEW_POPULAR_PRODUCTS("viewPopularProducts", 2, "[managerID]"),
+      VIEW_POPULAR_CUSTOMERS("viewPopularCustomers", 2, "[managerID]"),
+      VIEW_LIVE_SALES("viewLiveSales", 2, "[managerID]"),
+      SUPPLY_REQUEST("supplyRequest", 2, "storeID", "productName", "units", "warehouseID", "[price]", "[managerID]"),
+      VIEW_CATCHMENTS("viewCatchments", 3, "[radius]");
+
+      final String label;
+      final int level; // the access level needed, see Retail.accessLevel()
+      final String[] arguments;
+
+      private Operation(String _label, int _level, String... _arguments) {
+         this.label = _label;
+         this.level = _level;
+         this.arguments = _arguments;
+      }
+
+      static Operation of(String label) {
+         for (Operation op : values())
+            if (op.label.equalsIgnoreCase(label)) return op;
+         throw new IllegalArgumentException("Unknown operation: " + label);
+      }
+   }
+
+   private final Retail esql;
+   private final ResultWriter output;
+
+   // what the operations print, kept for the report of the failed ones
+   private final ByteArrayOutputStream messages = new ByteArrayOutputStream();
+
+   final LoadTest.OpStats[] stats = new LoadTest.OpStats[Operation.values().length];
+   int unreadable = 0;
+
+   /**
+    * @param esql the session to run the operations in, its output is set to output
+    * @param output the writer of the rows
+    */
+   public BatchRunner(Retail esql, ResultWriter output) {
+      this.esql = esql;
+      this.output = output;
+      for (int i = 0; i < stats.length; i++)
+         stats[i] = new LoadTest.OpStats();
+      esql.setOutput(output);
+   }
+
+   /**
+    * Runs the operations of a script and reports on them.
+    *
+    * @param script the script, read to its end
+    * @param report the stream of failures and the summary
+    * @return true if every line was read and no operation failed; rejected
+    *         operations do not count as failures
+    * @throws java.io.IOException when the script cannot be read or the rows cannot be written
+    */
+   public boolean run(BufferedReader script, PrintStream report) throws IOException {
+      PrintStream console = System.out;
+      System.setOut(new PrintStream(messages, true));
+      long start = System.nanoTime();
+      try {
+         String text;
+         for (int line = 1; (text = script.readLine()) != null; line++) {
+            text = text.trim();
+            if (text.isEmpty() || text.startsWith("#")) continue;
+
+            Operation op;
+            Map<String, String> arguments;
+            try {
+               arguments = text.startsWith("{") ? json(text) : words(text);
+               op = Operation.of(arguments.get("op"));
+            } catch (RuntimeException e) {
+               // a line cut short ends a JSON object early
+               report.println(String.format("line %d: %s", line,
+                  e instanceof IllegalArgumentException ? e.getMessage() : "Incomplete line"));
+               unreadable++;
+               continue;
+            }
+
+            messages.reset();
+            output.label(line, op.label);
+            LoadTest.OpStats s = stats[op.ordinal()];
+            long begin = System.nanoTime();
+            try {
+               if (!run(op, arguments)) {
+                  s.rejected++;
+                  report.println(String.format("line %d: %s rejected: %s", line, op.label, lastMessage()));
+               }
+            } catch (Exception e) {
+               s.errors++;
+               report.println(String.format("line %d: %s failed: %s", line, op.label, e.getMessage()));
+            }
+            s.latency.record((System.nanoTime() - begin) / 1000);
+         }
+      } finally {
+         System.setOut(console);
+         output.flush();
+      }
+      printSummary(report, (System.nanoTime() - start) / 1e9);
+
+      boolean ok = unreadable == 0;
+      for (LoadTest.OpStats s : stats) ok &= s.errors == 0;
+      return ok;
+   }
+
+   // runs one operation, returns false if it was rejected
+   private boolean run(Operation op, Map<String, String> a) throws Exception {
+      if (esql.accessLevel() < op.level) {
+         System.out.println(esql.accessLevel() == 0 ? "Error: not logged in" : "Error: FORBIDDEN");
+         return false;
+      }
+      switch (op) {
+         case LOGIN:
+            if (Retail.LogIn(esql, required(a, "name"), required(a, "password"))) return true;
+            System.out.println("Error: unknown name or wrong password");
+            return false;
+         case LOGOUT:
+            esql.endSession();
+            return true;
+         case VIEW_STORES:
+            Retail.viewStores(esql, esql.userName());
+            return true;
+         case VIEW_PRODUCTS:
+            Retail.viewProducts(esql, required(a, "storeID"));
+            return true;
+         case PLACE_ORDER:
+            return Retail.placeOrder(esql, required(a, "storeID"), required(a, "productName"), number(a, "units"));
+         case FIND_PRODUCT:
+            Retail.findProduct(esql, esql.userName(), required(a, "productName"), number(a, "units"));
+            return true;
+         case VIEW_RECENT_ORDERS:
+            Retail.viewRecentOrders(esql, esql.accessLevel() == 3 ? managerId(a) : "");
+            return true;
+         case UPDATE_PRODUCT: {
+            String storeID = required(a, "storeID"), productName = required(a, "productName");
+            int units = number(a, "units");
+            double price = Double.parseDouble(required(a, "price"));
+            if (units < -1 || price < 0 && price != -1)
+               throw new IllegalArgumentException("units and price must not be negative, or -1 to leave them as they are");
+            return Retail.productUpdateAllowed(esql, storeID, productName) &&
+                   Retail.updateProduct(esql, storeID, productName, units, price);
+         }
+         case VIEW_RECENT_UPDATES:
+            Retail.viewRecentUpdates(esql, managerId(a));
+            return true;
+         case VIEW_POPULAR_PRODUCTS:
+            Retail.viewPopularProducts(esql, managerId(a));
+            return true;
+         case VIEW_POPULAR_CUSTOMERS:
+            Retail.viewPopularCustomers(esql, managerId(a));
+            return true;
+         case VIEW_LIVE_SALES:
+            Retail.viewLiveSales(esql, managerId(a));
+            return true;
+         case SUPPLY_REQUEST: {
+            String price = a.get("price");
+            return Retail.placeProductSupplyRequests(esql, managerId(a), required(a, "storeID"), required(a, "productName"),
+               Integer.toString(number(a, "units")), required(a, "warehouseID"), price == null || price.isEmpty() ? null : price);
+         }
+         case VIEW_CATCHMENTS:
+            Retail.viewCatchments(esql, a.containsKey("radius") ? Double.parseDouble(a.get("radius")) : 30);
+            return true;
+         default:
+            throw new IllegalArgumentException("Unknown operation: " + op.label);
+      }
+   }
+
+   private static String required(Map<String, String> a, String name) {
+      String value = a.get(name);
+      if (value == null) throw new IllegalArgumentException("Missing argument: " + name);
+      return value;
+   }
+
+   private static int number(Map<String, String> a, String name) {
+      try {
+         return Integer.parseInt(required(a, name).trim());
+      } catch (NumberFormatException e) {
+         throw new IllegalArgumentException(name + " must be a number");
+      }
+   }
+
+   // the manager the manager operations act for, admins name one
+   private String managerId(Map<String, String> a) {
+      if (esql.accessLevel() != 3) return esql.userId();
+      String id = a.get("managerID");
+      if (id == null || id.trim().isEmpty()) throw new IllegalArgumentException("Missing argument: managerID");
+      return id.trim();
+   }
+
+   // the last line the failed operation printed
+   private String lastMessage() {
+      String[] lines = messages.toString().trim().split("\n");
+      return lines[lines.length - 1].trim();
+   }
+
+   void printSummary(PrintStream out, double elapsed) {
+      out.println();
+      out.println(String.format("***** Batch: %.1f s *****", elapsed));
+      out.println(String.format("%-22s %9s %9s %9s %9s %9s %9s %9s",
+         "operation", "ops", "p50 ms", "p95 ms", "p99 ms", "max ms", "rejected", "errors"));
+      LoadTest.OpStats all = new LoadTest.OpStats();
+      for (Operation op : Operation.values()) {
+         LoadTest.OpStats s = stats[op.ordinal()];
+         if (s.latency.total == 0) continue;
+         printRow(out, op.label, s);
+         all.add(s);
+      }
+      printRow(out, "total", all);
+      if (unreadable > 0)
+         out.println(String.format("%d unreadable lines", unreadable));
+      out.println(String.format("%.1f ops/s", elapsed > 0 ? all.latency.total / elapsed : 0));
+   }
+
+   private static void printRow(PrintStream out, String label, LoadTest.OpStats s) {
+      out.println(String.format("%-22s %9d %9.2f %9.2f %9.2f %9.2f %9d %9d",
+         label, s.latency.total,
+         s.latency.percentile(50) / 1000.0, s.latency.percentile(95) / 1000.0,
+         s.latency.percentile(99) / 1000.0, s.latency.max / 1000.0,
+         s.rejected, s.errors));
+   }
+
+   /**
+    * Reads a line of words, the first the operation, the others its
+    * arguments in order.
+    */
+   static Map<String, String> words(String line) {
+      List<String> words = new ArrayList<String>();
+      StringBuilder word = null;
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '\\' && i + 1 < line.length()) word.append(line.charAt(++i));
+            else if (c == '"') quoted = false;
+            else word.append(c);
+         } else if (Character.isWhitespace(c)) {
+            if (word != null) words.add(word.toString());
+            word = null;
+         } else {
+            if (word == null) word = new StringBuilder();
+            if (c == '"') quoted = true;
+            else word.append(c);
+         }
+      }
+      if (quoted) throw new IllegalArgumentException("Unterminated quote");
+      if (word != null) words.add(word.toString());
+
+      Map<String, String> arguments = new HashMap<String, String>();
+      arguments.put("op", words.get(0));
+      String[] names = Operation.of(words.get(0)).arguments;
+      if (words.size() - 1 > names.length)
+         throw new IllegalArgumentException("Too many arguments for " + words.get(0));
+      for (int i = 1; i < words.size(); i++)
+         arguments.put(names[i - 1].replace("[", "").replace("]", ""), words.get(i));
+      return arguments;
+   }
+
+   /**
+    * Reads a line holding a JSON object of strings, numbers, booleans and
+    * nulls, as the values of the arguments named by its keys.
+    */
+   static Map<String, String> json(String line) {
+      Map<String, String> arguments = new HashMap<String, String>();
+      int[] at = {skip(line, 1)};
+      if (line.charAt(at[0]) == '}') return arguments;
+      while (true) {
+         String key = string(line, at);
+         at[0] = skip(line, at[0]);
+         expect(line, at[0]++, ':');
+         at[0] = skip(line, at[0]);
+         String value;
+         if (line.charAt(at[0]) == '"') {
+            value = string(line, at);
+         } else {
+            int end = at[0];
+            while (end < line.length() && ",} \t".indexOf(line.charAt(end)) < 0) end++;
+            value = line.substring(at[0], end);
+            if (value.isEmpty() || value.equals("{") || value.startsWith("["))
+               throw new IllegalArgumentException("Expected a string, number, boolean or null for " + key);
+            at[0] = end;
+            if (value.equals("null")) value = null;
+         }
+         if (value != null) arguments.put(key, value);
+         at[0] = skip(line, at[0]);
+         if (at[0] < line.length() && line.charAt(at[0]) == '}') break;
+         expect(line, at[0]++, ',');
+         at[0] = skip(line, at[0]);
+      }
+      if (!arguments.containsKey("op")) throw new IllegalArgumentException("Missing \"op\"");
+      return arguments;
+   }
+
+   // reads the JSON string at at[0], leaves at[0] behind it
+   private static String string(String line, int[] at) {
+      expect(line, at[0]++, '"');
+      StringBuilder value = new StringBuilder();
+      while (true) {
+         if (at[0] >= line.length()) throw new IllegalArgumentException("Unterminated string");
+         char c = line.charAt(at[0]++);
+         if (c == '"') return value.toString();
+         if (c != '\\') {
+            value.append(c);
+            continue;
+         }
+         if (at[0] >= line.length()) throw new IllegalArgumentException("Unterminated string");
+         c = line.charAt(at[0]++);
+         switch (c) {
+            case 'n': value.append('\n'); break;
+            case 't': value.append('\t'); break;
+            case 'r': value.append('\r'); break;
+            case 'b': value.append('\b'); break;
+            case 'f': value.append('\f'); break;
+            case 'u':
+               if (at[0] + 4 > line.length()) throw new IllegalArgumentException("Bad escape");
+               value.append((char) Integer.parseInt(line.substring(at[0], at[0] + 4), 16));
+               at[0] += 4;
+               break;
+            default: value.append(c);
+         }
+      }
+   }
+
+   private static int skip(String line, int at) {
+      while (at < line.length() && Character.isWhitespace(line.charAt(at))) at++;
+      return at;
+   }
+
+   private static void expect(String line, int at, char c) {
+      if (at >= line.length() || line.charAt(at) != c)
+         throw new IllegalArgumentException(String.format("Expected '%c' at column %d", c, at + 1));
+   }
+
+}//end BatchRunner
@@ -0,0 +1,367 @@
+/*
+ * In-Process Catalog
+ * ==================
+ *
+ * Process wide copy of the Product table, kept current by the inventory
+ * feed so browsing does not have to query the database.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds every product of every store, keyed by storeID and
+ * product name, along with the Store and Warehouse tables. Values are kept
+ * as the strings the database returns so they print exactly like a query
+ * result. The catalog is only consulted while it is live, i.e. while the
+ * inventory feed is connected or right after a snapshot was loaded.
+ *
+ * For availability searches the catalog also indexes products by name and
+ * stores by their square of a grid over the map, so a search only looks at
+ * the stores near the user or the stores carrying the product, whichever
+ * are fewer.
+ *
+ */
+public class Catalog {
+
+   // the columns of SELECT * FROM Product
+   public static final List<String> PRODUCT_COLUMNS =
+      Arrays.asList("storeid", "productname", "numberofunits", "priceperunit");
+
+   // the queries whose rows the catalog holds
+   public static final String PRODUCT_QUERY = "SELECT storeID, productName, numberOfUnits, pricePerUnit FROM ProductStock";
+   public static final String STORE_QUERY = "SELECT storeID, name, latitude, longitude, managerID, dateEstablished FROM Store";
+   public static final String WAREHOUSE_QUERY = "SELECT warehouseID, area, latitude, longitude FROM Warehouse";
+
+   private static final Catalog instance = new Catalog();
+
+   /**
+    * @return the process wide catalog
+    */
+   public static Catalog get() {
+      return instance;
+   }
+
+   // one product row and the change that last set it, values is null once deleted
+   static final class ProductRow {
+      final List<String> values;
+      final long changeId;
+
+      ProductRow(List<String> values, long changeId) {
+         this.values = values;
+         this.changeId = changeId;
+      }
+   }
+
+   // a store's position on the map
+   static final class StoreLocation {
+      final Integer storeId;
+      final double latitude, longitude;
+
+      StoreLocation(Integer storeId, double latitude, double longitude) {
+         this.storeId = storeId;
+         this.latitude = latitude;
+         this.longitude = longitude;
+      }
+   }
+
+   // side of the grid squares stores are indexed by, in the units of latitude and longitude
+   static final double GRID_CELL = 10.0;
+
+   // products of every store, in the order they were loaded or added
+   private final Map<Integer, Map<String, ProductRow>> products = new HashMap<Integer, Map<String, ProductRow>>();
+   private final Map<Integer, List<String>> stores = new LinkedHashMap<Integer, List<String>>();
+   private final Map<Integer, List<String>> warehouses = new LinkedHashMap<Integer, List<String>>();
+   // product name -> the stores carrying it, the same rows as products
+   private final Map<String, Map<Integer, ProductRow>> stock = new HashMap<String, Map<Integer, ProductRow>>();
+   // grid square -> the stores located in it
+   private final Map<Long, List<StoreLocation>> grid = new HashMap<Long, List<StoreLocation>>();
+   private final Map<Integer, StoreLocation> locations = new HashMap<Integer, StoreLocation>();
+   private long highWaterMark = 0;
+   private long horizon = 0;
+   private boolean loaded = false;
+   private volatile boolean live = false;
+
+   /**
+    * @return true while the catalog reflects the database
+    */
+   public boolean isLive() {
+      return live;
+   }
+
+   void setLive(boolean live) {
+      this.live = live;
+   }
+
+   /**
+    * @return the highest ProductChanges.changeID applied to the catalog
+    */
+   public synchronized long highWaterMark() {
+      return highWaterMark;
+   }
+
+   /**
+    * @return the oldest transaction that was running when the catalog was
+    *         last brought up to date, its changes may be missing
+    */
+   public synchronized long horizon() {
+      return horizon;
+   }
+
+   /**
+    * Moves the horizon forward once the changes of the transactions before
+    * it were applied.
+    */
+   synchronized void advance(long horizon) {
+      this.horizon = Math.max(this.horizon, horizon);
+   }
+
+   /**
+    * Replaces the whole catalog.
+    *
+    * @param rows the rows of SELECT storeID, productName, numberOfUnits, pricePerUnit FROM Product
+    * @param changeId the highest ProductChanges.changeID at the time the rows were read
+    * @param horizon the oldest transaction running at the time the rows were read
+    */
+   public synchronized void load(List<List<String>> rows, long changeId, long horizon) {
+      products.clear();
+      stock.clear();
+      for (List<String> row : rows)
+         put(row, 0);
+      highWaterMark = changeId;
+      this.horizon = horizon;
+      loaded = true;
+   }
+
+   /**
+    * @return true once products were loaded, from the database or a snapshot
+    */
+   public synchronized boolean isLoaded() {
+      return loaded;
+   }
+
+   /**
+    * Replaces the stores.
+    *
+    * @param rows the rows of STORE_QUERY
+    */
+   public synchronized void loadStores(List<List<String>> rows) {
+      stores.clear();
+      grid.clear();
+      locations.clear();
+      for (List<String> row : rows) {
+         Integer storeId = Integer.valueOf(row.get(0).trim());
+         stores.put(storeId, new ArrayList<String>(row));
+         StoreLocation location = new StoreLocation(storeId,
+            Double.parseDouble(row.get(2).trim()), Double.parseDouble(row.get(3).trim()));
+         locations.put(storeId, location);
+         Long cell = cell(cellOf(location.latitude), cellOf(location.longitude));
+         List<StoreLocation> inCell = grid.get(cell);
+         if (inCell == null) {
+            inCell = new ArrayList<StoreLocation>();
+            grid.put(cell, inCell);
+         }
+         inCell.add(location);
+      }
+   }
+
+   static int cellOf(double coordinate) {
+      return (int) Math.floor(coordinate / GRID_CELL);
+   }
+
+   static Long cell(int latitudeCell, int longitudeCell) {
+      return Long.valueOf(((long) latitudeCell << 32) | (longitudeCell & 0xffffffffL));
+   }
+
+   /**
+    * Replaces the warehouses.
+    *
+    * @param rows the rows of WAREHOUSE_QUERY
+    */
+   public synchronized void loadWarehouses(List<List<String>> rows) {
+      warehouses.clear();
+      for (List<String> row : rows)
+         warehouses.put(Integer.valueOf(row.get(0).trim()), new ArrayList<String>(row));
+   }
+
+   /**
+    * @return a copy of the rows of STORE_QUERY
+    */
+   public synchronized List<List<String>> stores() {
+      return copy(stores.values());
+   }
+
+   /**
+    * @return a copy of the rows of WAREHOUSE_QUERY
+    */
+   public synchronized List<List<String>> warehouses() {
+      return copy(warehouses.values());
+   }
+
+   /**
+    * @return a copy of the rows of PRODUCT_QUERY
+    */
+   public synchronized List<List<String>> allProducts() {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (Map<String, ProductRow> store : products.values())
+         for (ProductRow p : store.values())
+            if (p.values != null)
+               rows.add(new ArrayList<String>(p.values));
+      return rows;
+   }
+
+   private static List<List<String>> copy(Iterable<List<String>> rows) {
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (List<String> row : rows)
+         result.add(new ArrayList<String>(row));
+      return result;
+   }
+
+   private void put(List<String> row, long changeId) {
+      Integer storeId = Integer.valueOf(row.get(0).trim());
+      Map<String, ProductRow> store = products.get(storeId);
+      if (store == null) {
+         store = new LinkedHashMap<String, ProductRow>();
+         products.put(storeId, store);
+      }
+      String name = row.get(1).trim();
+      // a product deleted and added again goes to the end like a new row would
+      ProductRow previous = store.get(name);
+      if (previous != null && previous.values == null) store.remove(name);
+      ProductRow current = new ProductRow(new ArrayList<String>(row), changeId);
+      store.put(name, current);
+
+      Map<Integer, ProductRow> carriers = stock.get(name);
+      if (carriers == null) {
+         carriers = new HashMap<Integer, ProductRow>();
+         stock.put(name, carriers);
+      }
+      carriers.put(storeId, current);
+   }
+
+   /**
+    * Applies the row of a product re-read after a change. The row is the
+    * product as committed when it was read, so it replaces the product
+    * whatever changes were applied before.
+    *
+    * @param changeId the changeID of the product's newest change read
+    * @param row storeID, productName, numberOfUnits and pricePerUnit, the last two null for a delete
+    */
+   public synchronized void apply(long changeId, List<String> row) {
+      Integer storeId = Integer.valueOf(row.get(0).trim());
+      String name = row.get(1).trim();
+      Map<String, ProductRow> store = products.get(storeId);
+
+      if (row.get(2) == null) {
+         // keep a tombstone, like a deleted row the product goes to the end if added again
+         if (store != null) store.put(name, new ProductRow(null, changeId));
+         Map<Integer, ProductRow> carriers = stock.get(name);
+         if (carriers != null) {
+            carriers.remove(storeId);
+            if (carriers.isEmpty()) stock.remove(name);
+         }
+      } else {
+         put(row, changeId);
+      }
+      highWaterMark = Math.max(highWaterMark, changeId);
+   }
+
+   /**
+    * @param storeId the storeID as entered by the user
+    * @return a copy of the products of the store, or null if storeId is not a number
+    */
+   public synchronized List<List<String>> products(String storeId) {
+      Integer key;
+      try {
+         key = Integer.valueOf(storeId.trim());
+      } catch (NumberFormatException e) {
+         return null;
+      }
+      List<List<String>> rows = new ArrayList<List<String>>();
+      Map<String, ProductRow> store = products.get(key);
+      if (store != null)
+         for (ProductRow p : store.values())
+            if (p.values != null)
+               rows.add(new ArrayList<String>(p.values));
+      return rows;
+   }
+
+   /**
+    * Finds the stores within a distance of a point that have at least a
+    * number of units of a product.
+    *
+    * @param latitude the latitude of the point, usually the user's
+    * @param longitude the longitude of the point
+    * @param radius the largest distance to a store
+    * @param productName the product name
+    * @param minUnits the fewest units a store must have
+    * @return storeID, name, distance, numberOfUnits and pricePerUnit of each store, nearest first, then cheapest
+    */
+   public synchronized List<List<String>> availability(double latitude, double longitude, double radius,
+                                                       String productName, int minUnits) {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      Map<Integer, ProductRow> carriers = stock.get(productName.trim());
+      if (carriers == null) return rows;
+
+      // the stores in the grid squares the circle touches
+      List<StoreLocation> nearby = new ArrayList<StoreLocation>();
+      for (int x = cellOf(latitude - radius); x <= cellOf(latitude + radius); x++)
+         for (int y = cellOf(longitude - radius); y <= cellOf(longitude + radius); y++) {
+            List<StoreLocation> inCell = grid.get(cell(x, y));
+            if (inCell != null) nearby.addAll(inCell);
+         }
+
+      if (nearby.size() <= carriers.size()) {
+         for (StoreLocation s : nearby)
+            addIfAvailable(rows, s, carriers.get(s.storeId), latitude, longitude, radius, minUnits);
+      } else {
+         for (Map.Entry<Integer, ProductRow> e : carriers.entrySet())
+            addIfAvailable(rows, locations.get(e.getKey()), e.getValue(), latitude, longitude, radius, minUnits);
+      }
+      sortByDistanceAndPrice(rows);
+      return rows;
+   }
+
+   private void addIfAvailable(List<List<String>> rows, StoreLocation s, ProductRow p,
+                               double latitude, double longitude, double radius, int minUnits) {
+      if (s == null || p == null || p.values == null) return;
+      if (Integer.parseInt(p.values.get(2).trim()) < minUnits) return;
+      double distance = distance(latitude, longitude, s.latitude, s.longitude);
+      if (distance > radius) return;
+      rows.add(Arrays.asList(s.storeId.toString(), stores.get(s.storeId).get(1),
+         String.format("%.2f", distance), p.values.get(2), p.values.get(3)));
+   }
+
+   // euclidean distance, as Retail.calculateDistance
+   static double distance(double lat1, double long1, double lat2, double long2) {
+      double t1 = (lat1 - lat2) * (lat1 - lat2);
+      double t2 = (long1 - long2) * (long1 - long2);
+      return Math.sqrt(t1 + t2);
+   }
+
+   /**
+    * Orders availability rows nearest first, then cheapest.
+    *
+    * @param rows rows of storeID, name, distance, numberOfUnits and pricePerUnit
+    */
+   static void sortByDistanceAndPrice(List<List<String>> rows) {
+      Collections.sort(rows, new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            int c = Double.compare(Double.parseDouble(a.get(2)), Double.parseDouble(b.get(2)));
+            if (c != 0) return c;
+            return Double.compare(Double.parseDouble(a.get(4).trim()), Double.parseDouble(b.get(4).trim()));
+         }
+      });
+   }
+
+}//end Catalog
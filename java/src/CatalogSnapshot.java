@@ -0,0 +1,313 @@
+/*
+ * Catalog Snapshot
+ * ================
+ *
+ * Compact binary copy of the Store, Product and Warehouse tables so a new
+ * Retail process can serve browsing before it has read the database.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * This class writes the catalog to a file of fixed-width records and reads
+ * it back through a memory mapping. Names and price texts are stored once
+ * in a dictionary and referenced by index. The header carries the
+ * ProductChanges high-water mark and the catalog's transaction horizon, so
+ * the inventory feed only has to apply the changes made since the snapshot
+ * was written.
+ *
+ * File layout, all numbers big-endian:
+ *   header     64 bytes, see HEADER_BYTES
+ *   dictionary dictionaryCount entries of (short length, UTF-8 bytes)
+ *   stores     storeID, name, latitude, longitude, managerID, dateEstablished  6 ints each
+ *   products   storeID, productName, numberOfUnits, pricePerUnit               4 ints each
+ *   warehouses warehouseID, area, latitude, longitude                          4 ints each
+ *
+ * Coordinates are stored in millionths of a degree, the scale of the
+ * decimal columns, dates as epoch days and NULL as Integer.MIN_VALUE.
+ *
+ * Retail reads the snapshot retail.catalogSnapshot (catalog.snapshot, empty
+ * for none) when it starts the inventory feed, which keeps the catalog
+ * current from there. It writes the snapshot on exit only when
+ * retail.writeCatalogSnapshot is true, typically set for one long running
+ * process, so the processes do not all rewrite it.
+ *
+ */
+public class CatalogSnapshot {
+
+   static final int MAGIC = 0x52434154; // "RCAT"
+   static final int VERSION = 2;
+   static final int HEADER_BYTES = 64;
+   static final int STORE_BYTES = 6 * 4;
+   static final int PRODUCT_BYTES = 4 * 4;
+   static final int WAREHOUSE_BYTES = 4 * 4;
+   static final int NULL = Integer.MIN_VALUE;
+
+   // width of the char(30) name columns, restored on read
+   static final int NAME_WIDTH = 30;
+
+   /**
+    * Writes the catalog atomically: the snapshot goes to a temporary file
+    * of its own next to the target, which it replaces once complete, so
+    * processes writing at the same time leave one of their snapshots.
+    *
+    * @param file the snapshot file
+    * @param catalog the catalog to write, should be live
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public static void write(File file, Catalog catalog) throws IOException {
+      long highWaterMark = catalog.highWaterMark();
+      long horizon = catalog.horizon();
+      List<List<String>> stores = catalog.stores();
+      List<List<String>> products = catalog.allProducts();
+      List<List<String>> warehouses = catalog.warehouses();
+
+      Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+      int dictionaryBytes = 0;
+      for (List<String> s : stores) dictionaryBytes += intern(dictionary, s.get(1));
+      for (List<String> p : products) {
+         dictionaryBytes += intern(dictionary, p.get(1));
+         dictionaryBytes += intern(dictionary, p.get(3));
+      }
+
+      int bodyBytes = dictionaryBytes + stores.size() * STORE_BYTES
+         + products.size() * PRODUCT_BYTES + warehouses.size() * WAREHOUSE_BYTES;
+      ByteBuffer body = ByteBuffer.allocate(bodyBytes);
+      for (String entry : dictionary.keySet()) {
+         byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+         body.putShort((short) bytes.length).put(bytes);
+      }
+      for (List<String> s : stores) {
+         body.putInt(integer(s.get(0))).putInt(dictionary.get(s.get(1).trim()))
+             .putInt(micros(s.get(2))).putInt(micros(s.get(3)))
+             .putInt(integer(s.get(4))).putInt(epochDay(s.get(5)));
+      }
+      for (List<String> p : products) {
+         body.putInt(integer(p.get(0))).putInt(dictionary.get(p.get(1).trim()))
+             .putInt(integer(p.get(2))).putInt(dictionary.get(p.get(3).trim()));
+      }
+      for (List<String> w : warehouses) {
+         body.putInt(integer(w.get(0))).putInt(integer(w.get(1)))
+             .putInt(micros(w.get(2))).putInt(micros(w.get(3)));
+      }
+      body.flip();
+
+      CRC32 crc = new CRC32();
+      crc.update(body.array(), 0, bodyBytes);
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      header.putInt(MAGIC).putInt(VERSION).putLong(highWaterMark).putLong(System.currentTimeMillis())
+            .putInt(dictionary.size()).putInt(dictionaryBytes)
+            .putInt(stores.size()).putInt(products.size()).putInt(warehouses.size())
+            .putLong(crc.getValue()).putLong(horizon);
+      header.position(HEADER_BYTES);
+      header.flip();
+
+      // a temporary file of its own, in the target's directory so the move stays atomic
+      File directory = file.getAbsoluteFile().getParentFile();
+      Path temp = Files.createTempFile(directory.toPath(), file.getName() + ".", ".tmp");
+      try {
+         FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+         try {
+            while (header.hasRemaining()) channel.write(header);
+            while (body.hasRemaining()) channel.write(body);
+            channel.force(true);
+         } finally {
+            channel.close();
+         }
+         Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+         Files.deleteIfExists(temp);
+      }
+   }
+
+   // adds a value to the dictionary, returns the bytes it adds to the file
+   private static int intern(Map<String, Integer> dictionary, String value) {
+      String key = value.trim();
+      if (dictionary.containsKey(key)) return 0;
+      dictionary.put(key, dictionary.size());
+      return 2 + key.getBytes(StandardCharsets.UTF_8).length;
+   }
+
+   /**
+    * Maps the snapshot and loads it into the catalog. A missing file is not
+    * an error; a file that fails validation is ignored with a message.
+    *
+    * @param file the snapshot file
+    * @param catalog the catalog to fill
+    * @return true if the catalog was loaded from the snapshot
+    */
+   public static boolean loadIfPresent(File file, Catalog catalog) {
+      if (!file.exists()) return false;
+      try {
+         read(file, catalog);
+         return true;
+      } catch (Exception e) {
+         System.err.println("Ignoring catalog snapshot " + file + ": " + e.getMessage());
+         return false;
+      }
+   }
+
+   /**
+    * Maps the snapshot read-only and loads it into the catalog.
+    *
+    * @throws java.io.IOException when the file is unreadable or invalid
+    */
+   public static void read(File file, Catalog catalog) throws IOException {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      MappedByteBuffer map;
+      try {
+         map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+         // the mapping stays valid after the channel is closed
+         channel.close();
+      }
+
+      if (map.capacity() < HEADER_BYTES || map.getInt() != MAGIC)
+         throw new IOException("not a catalog snapshot");
+      int version = map.getInt();
+      if (version != VERSION)
+         throw new IOException("unsupported snapshot version " + version);
+      long highWaterMark = map.getLong();
+      map.getLong(); // created
+      int dictionaryCount = map.getInt();
+      int dictionaryBytes = map.getInt();
+      int storeCount = map.getInt();
+      int productCount = map.getInt();
+      int warehouseCount = map.getInt();
+      long checksum = map.getLong();
+      long horizon = map.getLong();
+
+      long bodyBytes = (long) dictionaryBytes + (long) storeCount * STORE_BYTES
+         + (long) productCount * PRODUCT_BYTES + (long) warehouseCount * WAREHOUSE_BYTES;
+      if (map.capacity() != HEADER_BYTES + bodyBytes)
+         throw new IOException("truncated snapshot");
+
+      map.position(HEADER_BYTES);
+      ByteBuffer body = map.slice();
+      CRC32 crc = new CRC32();
+      crc.update(body);
+      if (crc.getValue() != checksum)
+         throw new IOException("checksum mismatch");
+      body.rewind();
+
+      String[] dictionary = new String[dictionaryCount];
+      for (int i = 0; i < dictionaryCount; i++) {
+         byte[] bytes = new byte[body.getShort() & 0xffff];
+         body.get(bytes);
+         dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+      }
+
+      List<List<String>> stores = new ArrayList<List<String>>(storeCount);
+      for (int i = 0; i < storeCount; i++) {
+         stores.add(Arrays.asList(text(body.getInt()), pad(dictionary[body.getInt()]),
+            decimal(body.getInt()), decimal(body.getInt()), text(body.getInt()), date(body.getInt())));
+      }
+      List<List<String>> products = new ArrayList<List<String>>(productCount);
+      for (int i = 0; i < productCount; i++) {
+         products.add(Arrays.asList(text(body.getInt()), pad(dictionary[body.getInt()]),
+            text(body.getInt()), dictionary[body.getInt()]));
+      }
+      List<List<String>> warehouses = new ArrayList<List<String>>(warehouseCount);
+      for (int i = 0; i < warehouseCount; i++) {
+         warehouses.add(Arrays.asList(text(body.getInt()), text(body.getInt()),
+            decimal(body.getInt()), decimal(body.getInt())));
+      }
+
+      catalog.loadStores(stores);
+      catalog.loadWarehouses(warehouses);
+      catalog.load(products, highWaterMark, horizon);
+      catalog.setLive(true);
+   }
+
+   // conversions between the database's text values and the stored ints
+
+   static int integer(String value) {
+      return value == null ? NULL : Integer.parseInt(value.trim());
+   }
+
+   static String text(int value) {
+      return value == NULL ? null : Integer.toString(value);
+   }
+
+   static int micros(String value) {
+      return value == null ? NULL : new BigDecimal(value.trim()).movePointRight(6).intValueExact();
+   }
+
+   static String decimal(int micros) {
+      return micros == NULL ? null : BigDecimal.valueOf(micros, 6).toPlainString();
+   }
+
+   static int epochDay(String value) {
+      return value == null ? NULL : (int) LocalDate.parse(value.trim()).toEpochDay();
+   }
+
+   static String date(int epochDay) {
+      return epochDay == NULL ? null : LocalDate.ofEpochDay(epochDay).toString();
+   }
+
+   static String pad(String name) {
+      StringBuilder sb = new StringBuilder(NAME_WIDTH).append(name);
+      while (sb.length() < NAME_WIDTH) sb.append(' ');
+      return sb.toString();
+   }
+
+   /**
+    * Writes a snapshot straight from the database, for example from cron so
+    * new instances start from a recent one.
+    *
+    * @param args <dbname> <port> <user> <snapshot file>
+    */
+   public static void main(String[] args) {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            CatalogSnapshot.class.getName () +
+            " <dbname> <port> <user> <snapshot file>");
+         return;
+      }//end if
+
+      Retail esql = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail(args[0], args[1], args[2], "");
+         Catalog catalog = Catalog.get();
+         List<String> mark = esql.executeQueryAndReturnResult(
+            "SELECT COALESCE(MAX(changeID), 0), txid_snapshot_xmin(txid_current_snapshot()) FROM ProductChanges").get(0);
+         catalog.loadStores(esql.executeQueryAndReturnResult(Catalog.STORE_QUERY));
+         catalog.loadWarehouses(esql.executeQueryAndReturnResult(Catalog.WAREHOUSE_QUERY));
+         catalog.load(esql.executeQueryAndReturnResult(Catalog.PRODUCT_QUERY),
+            Long.parseLong(mark.get(0).trim()), Long.parseLong(mark.get(1).trim()));
+         write(new File(args[3]), catalog);
+         System.out.println("Snapshot written to " + args[3]);
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+      } finally {
+         if (esql != null) esql.cleanup();
+      }
+   }//end main
+
+}//end CatalogSnapshot
@@ -0,0 +1,409 @@
+/*
+ * Catchment Report
+ * ================
+ *
+ * Counts the customers inside each store's delivery radius and how many of
+ * them could also order from another store.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class reads the coordinates of every customer and store into one
+ * array per column and compares customers with stores. The comparison
+ * runs over blocks of customers that stay in the CPU cache, one store at a
+ * time, in a loop without branches or calls that the JIT compiles to
+ * vector instructions. Blocks are spread over the fork-join common pool.
+ *
+ * Customers are first ordered along a Z-order curve, so the customers of a
+ * block live in a small part of the map. A store whose catchment misses
+ * that part, or covers it whole, is then settled for the whole block
+ * without comparing each customer.
+ *
+ * Distances are compared squared, so no square root is taken; a customer
+ * is inside a catchment exactly when Retail.calculateDistance would return
+ * at most the radius, up to rounding in the last digit.
+ *
+ */
+public class CatchmentReport {
+
+   // customers compared with all stores by one task, 2 x 64KB of coordinates
+   static final int BLOCK_USERS = 8192;
+   // rows read per FETCH while loading customers
+   static final int FETCH_ROWS = 10000;
+   // customers inside this many catchments or more are counted together
+   static final int MAX_OVERLAP = 3;
+
+   final double radius;
+
+   // customers, one array per column, only the first userCount entries are used
+   double[] userLatitude = new double[1 << 16];
+   double[] userLongitude = new double[1 << 16];
+   int userCount = 0;
+
+   // stores, one array per column
+   int[] storeId = new int[0];
+   String[] storeName = new String[0];
+   double[] storeLatitude = new double[0];
+   double[] storeLongitude = new double[0];
+
+   // results, per store: customers inside the catchment and those also inside another one
+   long[] customers;
+   long[] shared;
+   // customers inside 0, 1, 2 and MAX_OVERLAP or more catchments
+   long[] coverage;
+   long elapsedMillis;
+
+   public CatchmentReport(double radius) {
+      this.radius = radius;
+   }
+
+   /**
+    * Reads the customers and stores. Customers are read through a cursor so
+    * no more than FETCH_ROWS of them are held as driver rows at a time.
+    *
+    * @param stmt a statement on a connection in autocommit mode, not used by anyone else meanwhile
+    * @throws java.sql.SQLException when a query failed
+    */
+   public void load(Statement stmt) throws SQLException {
+      List<List<String>> stores = new ArrayList<List<String>>();
+      ResultSet rs = stmt.executeQuery(Catalog.STORE_QUERY);
+      while (rs.next())
+         stores.add(Arrays.asList(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)));
+      rs.close();
+      load(stmt, stores);
+   }
+
+   /**
+    * Reads the customers, for the given stores.
+    *
+    * @param stmt a statement on a connection in autocommit mode, not used by anyone else meanwhile
+    * @param stores rows starting with the storeID, name, latitude and longitude
+    * @throws java.sql.SQLException when a query failed
+    */
+   public void load(Statement stmt, List<List<String>> stores) throws SQLException {
+      int n = stores.size();
+      storeId = new int[n];
+      storeName = new String[n];
+      storeLatitude = new double[n];
+      storeLongitude = new double[n];
+      for (int s = 0; s < n; s++) {
+         List<String> row = stores.get(s);
+         storeId[s] = Integer.parseInt(row.get(0).trim());
+         storeName[s] = row.get(1);
+         storeLatitude[s] = Double.parseDouble(row.get(2).trim());
+         storeLongitude[s] = Double.parseDouble(row.get(3).trim());
+      }
+
+      userCount = 0;
+      Connection connection = stmt.getConnection();
+      connection.setAutoCommit(false);
+      try {
+         stmt.execute("DECLARE catchment_users NO SCROLL CURSOR FOR " +
+                      "SELECT latitude, longitude FROM Users WHERE type = 'customer'");
+         int fetched;
+         do {
+            fetched = 0;
+            ResultSet rs = stmt.executeQuery("FETCH FORWARD " + FETCH_ROWS + " FROM catchment_users");
+            while (rs.next()) {
+               addUser(rs.getDouble(1), rs.getDouble(2));
+               fetched++;
+            }
+            rs.close();
+         } while (fetched == FETCH_ROWS);
+         stmt.execute("CLOSE catchment_users");
+         connection.commit();
+      } catch (SQLException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(true);
+      }
+   }
+
+   void addUser(double latitude, double longitude) {
+      if (userCount == userLatitude.length) {
+         userLatitude = Arrays.copyOf(userLatitude, userCount * 2);
+         userLongitude = Arrays.copyOf(userLongitude, userCount * 2);
+      }
+      userLatitude[userCount] = latitude;
+      userLongitude[userCount] = longitude;
+      userCount++;
+   }
+
+   /**
+    * Compares every customer with every store.
+    *
+    * @param pool the pool the blocks of customers run in
+    */
+   public void compute(ForkJoinPool pool) {
+      long start = System.nanoTime();
+      sortSpatially();
+      Counts counts = pool.invoke(new Block(0, userCount));
+      customers = counts.customers;
+      shared = counts.shared;
+      coverage = counts.coverage;
+      elapsedMillis = (System.nanoTime() - start) / 1000000;
+   }
+
+   /**
+    * Reorders the customers along a Z-order curve over a 1024 x 1024 grid
+    * spanning their coordinates.
+    */
+   void sortSpatially() {
+      if (userCount == 0) return;
+      double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+      double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+      for (int i = 0; i < userCount; i++) {
+         minLat = Math.min(minLat, userLatitude[i]);
+         maxLat = Math.max(maxLat, userLatitude[i]);
+         minLon = Math.min(minLon, userLongitude[i]);
+         maxLon = Math.max(maxLon, userLongitude[i]);
+      }
+      double latScale = 1023 / Math.max(maxLat - minLat, 1e-9);
+      double lonScale = 1023 / Math.max(maxLon - minLon, 1e-9);
+
+      // curve position in the high half, the customer's index in the low half
+      long[] order = new long[userCount];
+      for (int i = 0; i < userCount; i++) {
+         long z = spread((int) ((userLatitude[i] - minLat) * latScale)) << 1
+                | spread((int) ((userLongitude[i] - minLon) * lonScale));
+         order[i] = z << 32 | i;
+      }
+      Arrays.sort(order);
+
+      double[] lat = new double[userCount], lon = new double[userCount];
+      for (int i = 0; i < userCount; i++) {
+         int from = (int) order[i];
+         lat[i] = userLatitude[from];
+         lon[i] = userLongitude[from];
+      }
+      userLatitude = lat;
+      userLongitude = lon;
+   }
+
+   // spreads the low 10 bits of v over the even bits
+   static long spread(int v) {
+      long x = v & 0x3ff;
+      x = (x | x << 8) & 0x00ff00ffL;
+      x = (x | x << 4) & 0x0f0f0f0fL;
+      x = (x | x << 2) & 0x33333333L;
+      x = (x | x << 1) & 0x55555555L;
+      return x;
+   }
+
+   // the counts of a range of customers
+   final class Counts {
+      final long[] customers = new long[storeId.length];
+      final long[] shared = new long[storeId.length];
+      final long[] coverage = new long[MAX_OVERLAP + 1];
+
+      Counts add(Counts other) {
+         for (int s = 0; s < customers.length; s++) {
+            customers[s] += other.customers[s];
+            shared[s] += other.shared[s];
+         }
+         for (int k = 0; k < coverage.length; k++)
+            coverage[k] += other.coverage[k];
+         return this;
+      }
+   }
+
+   // splits a range of customers until it is one block
+   final class Block extends RecursiveTask<Counts> {
+      private static final long serialVersionUID = 1L;
+
+      final int from, to;
+
+      Block(int from, int to) {
+         this.from = from;
+         this.to = to;
+      }
+
+      protected Counts compute() {
+         if (to - from <= BLOCK_USERS)
+            return count(from, to);
+         int middle = (from + to) >>> 1;
+         Block left = new Block(from, middle);
+         left.fork();
+         Counts right = new Block(middle, to).compute();
+         return right.add(left.join());
+      }
+   }
+
+   /**
+    * Counts one block of customers. The first pass counts, for every
+    * customer, the catchments it is in; the second counts, for every store,
+    * its customers that are in more than one. Stores are only compared with
+    * each customer when their catchment covers part of the block's bounds.
+    */
+   Counts count(int from, int to) {
+      Counts counts = new Counts();
+      final double[] lat = userLatitude, lon = userLongitude;
+      final double r2 = radius * radius;
+      final int[] inside = new int[to - from];
+
+      double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+      double minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+      for (int i = from; i < to; i++) {
+         minLat = Math.min(minLat, lat[i]);
+         maxLat = Math.max(maxLat, lat[i]);
+         minLon = Math.min(minLon, lon[i]);
+         maxLon = Math.max(maxLon, lon[i]);
+      }
+
+      // per store: 0 misses the block, 1 covers it whole, 2 covers part of it
+      final byte[] reach = new byte[storeId.length];
+      for (int s = 0; s < storeId.length; s++) {
+         final double sLat = storeLatitude[s], sLon = storeLongitude[s];
+         double nearLat = Math.max(0, Math.max(minLat - sLat, sLat - maxLat));
+         double nearLon = Math.max(0, Math.max(minLon - sLon, sLon - maxLon));
+         if (nearLat * nearLat + nearLon * nearLon > r2) continue;
+
+         double farLat = Math.max(Math.abs(sLat - minLat), Math.abs(sLat - maxLat));
+         double farLon = Math.max(Math.abs(sLon - minLon), Math.abs(sLon - maxLon));
+         if (farLat * farLat + farLon * farLon <= r2) {
+            reach[s] = 1;
+            for (int i = 0; i < inside.length; i++)
+               inside[i]++;
+            counts.customers[s] = inside.length;
+            continue;
+         }
+
+         reach[s] = 2;
+         int n = 0;
+         for (int i = from; i < to; i++) {
+            double dLat = lat[i] - sLat;
+            double dLon = lon[i] - sLon;
+            int in = dLat * dLat + dLon * dLon <= r2 ? 1 : 0;
+            inside[i - from] += in;
+            n += in;
+         }
+         counts.customers[s] = n;
+      }
+
+      int multiple = 0;
+      for (int k : inside) {
+         counts.coverage[Math.min(k, MAX_OVERLAP)]++;
+         if (k > 1) multiple++;
+      }
+      if (multiple == 0) return counts;
+
+      for (int s = 0; s < storeId.length; s++) {
+         if (reach[s] == 0 || counts.customers[s] == 0) continue;
+         if (reach[s] == 1) {
+            counts.shared[s] = multiple;
+            continue;
+         }
+         final double sLat = storeLatitude[s], sLon = storeLongitude[s];
+         int n = 0;
+         for (int i = from; i < to; i++) {
+            double dLat = lat[i] - sLat;
+            double dLon = lon[i] - sLon;
+            n += dLat * dLat + dLon * dLon <= r2 && inside[i - from] > 1 ? 1 : 0;
+         }
+         counts.shared[s] = n;
+      }
+      return counts;
+   }
+
+   /**
+    * @return storeID, name, customers, shared and exclusive customers of every store
+    */
+   public List<List<String>> storeRows() {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int s = 0; s < storeId.length; s++)
+         rows.add(Arrays.asList(Integer.toString(storeId[s]), storeName[s], Long.toString(customers[s]),
+            Long.toString(shared[s]), Long.toString(customers[s] - shared[s])));
+      return rows;
+   }
+
+   /**
+    * @return the number of catchments and the customers inside that many
+    */
+   public List<List<String>> coverageRows() {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (int k = 0; k <= MAX_OVERLAP; k++)
+         rows.add(Arrays.asList(k == MAX_OVERLAP ? k + " or more" : Integer.toString(k), Long.toString(coverage[k])));
+      return rows;
+   }
+
+   /**
+    * Prints the report through the session's result format.
+    */
+   public void print(Retail esql) {
+      System.out.println("***** Store Catchments *****");
+      esql.printResult(Arrays.asList("storeid", "name", "customers", "shared", "exclusive"), storeRows());
+      System.out.println("");
+      System.out.println("***** Customers by Number of Catchments *****");
+      esql.printResult(Arrays.asList("catchments", "customers"), coverageRows());
+      System.out.println(String.format("[%d customers x %d stores in %d ms]", userCount, storeId.length, elapsedMillis));
+   }
+
+   /**
+    * Computes the report over the session's database, and with a shard map
+    * over the stores of every shard; the customers, which every database
+    * holds, are read from the home database. The data is read under the
+    * workload class of the session's current operation.
+    *
+    * @param esql the session
+    * @param radius the delivery radius
+    * @return the computed report
+    * @throws java.sql.SQLException when the data cannot be read
+    */
+   public static CatchmentReport run(Retail esql, double radius) throws SQLException {
+      final CatchmentReport report = new CatchmentReport(radius);
+      final List<List<String>> stores = esql.sharded() ? esql.gather(Catalog.STORE_QUERY, null) : null;
+      esql.schedule(new WorkloadScheduler.Work<Void>() {
+         public Void run(Statement stmt) throws SQLException {
+            if (stores == null) report.load(stmt);
+            else report.load(stmt, stores);
+            return null;
+         }
+      });
+      report.compute(ForkJoinPool.commonPool());
+      return report;
+   }
+
+   /**
+    * Prints the report outside the interactive program, for databases with
+    * more customers than are worth waiting for in a session.
+    *
+    * @param args <dbname> <port> <user> [radius]
+    */
+   public static void main(String[] args) {
+      if (args.length < 3 || args.length > 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            CatchmentReport.class.getName () +
+            " <dbname> <port> <user> [radius]");
+         return;
+      }//end if
+
+      Retail esql = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail(args[0], args[1], args[2], "");
+         run(esql, args.length == 4 ? Double.parseDouble(args[3]) : 30).print(esql);
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+      } finally {
+         if (esql != null) esql.cleanup();
+      }
+   }//end main
+
+}//end CatchmentReport
@@ -0,0 +1,126 @@
+/*
+ * Connection Pool
+ * ===============
+ *
+ * Small bounded pool of physical connections shared by the sessions of a
+ * process for work that runs beside a session's own connection.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class hands out at most a fixed number of connections at a time.
+ * Connections are opened on demand and kept open when returned. Pools are
+ * shared by name, so all Retail sessions of a process that talk to the same
+ * database draw from the same connections.
+ *
+ */
+public class ConnectionPool {
+
+   private static final Map<String, ConnectionPool> pools = new HashMap<String, ConnectionPool>();
+
+   /**
+    * @param name the purpose of the pool, pools of different purposes never share connections
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param size the maximum number of connections, only used when the pool is created
+    * @return the pool of that name for that database
+    */
+   public static synchronized ConnectionPool shared(String name, String url, String user, String passwd, int size) {
+      String key = name + "|" + url + "|" + user;
+      ConnectionPool pool = pools.get(key);
+      if (pool == null) {
+         pool = new ConnectionPool(url, user, passwd, size);
+         pools.put(key, pool);
+      }
+      return pool;
+   }
+
+   private final String url, user, passwd;
+   private final int size;
+   private final Semaphore permits;
+   private final LinkedBlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+
+   public ConnectionPool(String url, String user, String passwd, int size) {
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.size = size;
+      this.permits = new Semaphore(size, true);
+   }
+
+   /**
+    * @return the maximum number of connections handed out at a time
+    */
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Takes a connection, opening one if none is idle.
+    *
+    * @param timeoutMillis how long to wait for a free connection
+    * @return the connection, or null if none became free in time
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection borrow(long timeoutMillis) throws SQLException {
+      try {
+         if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+            return null;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return null;
+      }
+      try {
+         Connection c = idle.poll();
+         return c != null ? c : DriverManager.getConnection(url, user, passwd);
+      } catch (SQLException e) {
+         permits.release();
+         throw e;
+      }
+   }
+
+   /**
+    * Returns a borrowed connection. Connections that were closed, for
+    * example after a failure, are dropped.
+    */
+   public void release(Connection c) {
+      try {
+         if (c != null && !c.isClosed() && c.getAutoCommit())
+            idle.offer(c);
+         else if (c != null)
+            c.close();
+      } catch (SQLException e) {
+         // a connection that cannot report its state is not reused
+      } finally {
+         permits.release();
+      }
+   }
+
+   /**
+    * Closes a borrowed connection instead of returning it, for connections
+    * left in an unknown state.
+    */
+   public void discard(Connection c) {
+      try {
+         if (c != null) c.close();
+      } catch (SQLException e) {
+         // ignored.
+      } finally {
+         permits.release();
+      }
+   }
+
+}//end ConnectionPool
@@ -0,0 +1,490 @@
+/*
+ * Data Export
+ * ===========
+ *
+ * Streams query results such as order history, product catalogs and supply
+ * requests to a file, in constant memory.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class writes the rows of a query to a file as they arrive, through a
+ * 1MB buffer and a FileChannel, optionally gzipped. Two formats exist:
+ *
+ *   csv       with a header line. Drivers with a COPY API (org.postgresql
+ *             .copy.CopyManager, 8.4 and later) stream COPY ... TO STDOUT
+ *             straight into the file; the bundled driver reads the rows
+ *             through a cursor instead, FETCH_ROWS at a time.
+ *   columnar  rows are written in groups of GROUP_ROWS, column by column,
+ *             in the layout below. Always read through a cursor.
+ *
+ * Columnar layout, all numbers big-endian:
+ *   header  int MAGIC, int VERSION, int columns,
+ *           per column: short length, UTF-8 name, byte type
+ *   groups  int rows, then per column: a null bitmap of (rows + 7) / 8 bytes,
+ *           bit i of byte i / 8 set for a NULL in row i, followed by the
+ *           values of the rows that are not NULL:
+ *             INT64      8 byte integer
+ *             FLOAT64    8 byte IEEE double
+ *             TIMESTAMP  8 byte milliseconds since the epoch
+ *             TEXT       int length, UTF-8 bytes
+ *   end     int 0
+ *
+ */
+public class DataExport {
+
+   static final int MAGIC = 0x52434f4c; // "RCOL"
+   static final int VERSION = 1;
+   static final byte TEXT = 0, INT64 = 1, FLOAT64 = 2, TIMESTAMP = 3;
+
+   static final int FETCH_ROWS = 10000;
+   static final int GROUP_ROWS = 8192;
+   static final int BUFFER_BYTES = 1 << 20;
+
+   public enum Format { CSV, COLUMNAR }
+
+   // the exports offered, with the query of each; %s is the store or manager ID if any
+   public enum Dataset {
+      STORE_ORDERS("store-orders",
+         "SELECT orderNumber, customerID, storeID, productName, unitsOrdered, orderTime " +
+         "FROM Orders WHERE storeID = %s ORDER BY orderNumber"),
+      MANAGER_ORDERS("manager-orders",
+         "SELECT O.orderNumber, O.customerID, O.storeID, O.productName, O.unitsOrdered, O.orderTime " +
+         "FROM Orders O, Store S WHERE S.managerID = %s AND O.storeID = S.storeID ORDER BY O.orderNumber"),
+      PRODUCTS("products",
+         "SELECT storeID, productName, numberOfUnits, pricePerUnit FROM ProductStock ORDER BY storeID, productName"),
+      SUPPLY_REQUESTS("supply-requests",
+         "SELECT requestNumber, managerID, warehouseID, storeID, productName, unitsRequested " +
+         "FROM ProductSupplyRequests ORDER BY requestNumber");
+
+      public final String label, query;
+
+      private Dataset(String _label, String _query) {
+         this.label = _label;
+         this.query = _query;
+      }
+
+      /**
+       * @return true if the rows are those of one store, which one database holds with shards
+       */
+      public boolean oneStore() {
+         return this == STORE_ORDERS;
+      }
+
+      /**
+       * @return true if the query takes a store or manager ID
+       */
+      public boolean needsId() {
+         return query.contains("%s");
+      }
+
+      /**
+       * @param id the store or manager ID, ignored if the query takes none
+       * @return the query of the dataset
+       */
+      public String query(String id) {
+         return needsId() ? String.format(query, Integer.parseInt(id.trim())) : query;
+      }
+
+      public static Dataset of(String label) {
+         for (Dataset d : values())
+            if (d.label.equals(label)) return d;
+         throw new IllegalArgumentException("Unknown dataset: " + label);
+      }
+   }
+
+   /**
+    * Writes the bytes handed to it through one buffer into a channel.
+    */
+   static final class Sink extends OutputStream {
+      private final WritableByteChannel channel;
+      private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+      Sink(WritableByteChannel channel) {
+         this.channel = channel;
+      }
+
+      // makes room for n bytes, if the buffer can hold that many
+      Sink ensure(int n) throws IOException {
+         if (buffer.remaining() < n) flushBuffer();
+         return this;
+      }
+
+      Sink putInt(int v) throws IOException { ensure(4).buffer.putInt(v); return this; }
+      Sink putLong(long v) throws IOException { ensure(8).buffer.putLong(v); return this; }
+      Sink putDouble(double v) throws IOException { ensure(8).buffer.putDouble(v); return this; }
+      Sink putShort(short v) throws IOException { ensure(2).buffer.putShort(v); return this; }
+      Sink putByte(byte v) throws IOException { ensure(1).buffer.put(v); return this; }
+
+      public void write(int b) throws IOException {
+         putByte((byte) b);
+      }
+
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+         if (length > buffer.capacity()) {
+            flushBuffer();
+            ByteBuffer direct = ByteBuffer.wrap(bytes, offset, length);
+            while (direct.hasRemaining()) channel.write(direct);
+            return;
+         }
+         ensure(length).buffer.put(bytes, offset, length);
+      }
+
+      void flushBuffer() throws IOException {
+         buffer.flip();
+         while (buffer.hasRemaining()) channel.write(buffer);
+         buffer.clear();
+      }
+
+      public void close() throws IOException {
+         flushBuffer();
+         channel.close();
+      }
+   }
+
+   private final Connection connection;
+
+   /**
+    * @param connection a connection in autocommit mode, used by this export only
+    */
+   public DataExport(Connection connection) {
+      this.connection = connection;
+   }
+
+   /**
+    * Writes the rows of a query to a file.
+    *
+    * @param query the query, without a trailing semicolon
+    * @param file the file to write, replaced if it exists
+    * @param format the file format
+    * @param gzip compress the file
+    * @return the number of rows written
+    * @throws java.sql.SQLException when the query failed
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public long export(String query, String file, Format format, boolean gzip) throws SQLException, IOException {
+      WritableByteChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      if (gzip)
+         channel = Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(channel), 1 << 16));
+      Sink sink = new Sink(channel);
+      try {
+         if (format == Format.CSV) {
+            Long rows = copyOut(query, sink);
+            if (rows != null) return rows.longValue();
+         }
+         return fetch(query, format, sink);
+      } finally {
+         sink.close();
+      }
+   }
+
+   /**
+    * Streams COPY ... TO STDOUT into the sink, if the driver has a COPY API.
+    *
+    * @return the rows written, or null if the driver has no COPY API
+    */
+   Long copyOut(String query, OutputStream out) throws SQLException {
+      Object copyApi;
+      Method copyOut;
+      try {
+         copyApi = connection.getClass().getMethod("getCopyAPI").invoke(connection);
+         copyOut = copyApi.getClass().getMethod("copyOut", String.class, OutputStream.class);
+      } catch (Exception e) {
+         return null;
+      }
+      try {
+         return (Long) copyOut.invoke(copyApi, "COPY (" + query + ") TO STDOUT WITH CSV HEADER", out);
+      } catch (java.lang.reflect.InvocationTargetException e) {
+         if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause().toString());
+      } catch (IllegalAccessException e) {
+         return null;
+      }
+   }
+
+   /**
+    * Reads the rows through a cursor, FETCH_ROWS at a time, and writes them
+    * in the given format.
+    *
+    * @return the rows written
+    */
+   long fetch(String query, Format format, Sink sink) throws SQLException, IOException {
+      long rows = 0;
+      connection.setAutoCommit(false);
+      Statement stmt = connection.createStatement();
+      try {
+         stmt.execute("DECLARE export_rows NO SCROLL CURSOR FOR " + query);
+         RowWriter writer = null;
+         int fetched;
+         do {
+            fetched = 0;
+            ResultSet rs = stmt.executeQuery("FETCH FORWARD " + FETCH_ROWS + " FROM export_rows");
+            if (writer == null)
+               writer = format == Format.CSV ? new CsvWriter(sink, rs.getMetaData()) : new ColumnarWriter(sink, rs.getMetaData());
+            while (rs.next()) {
+               writer.row(rs);
+               fetched++;
+            }
+            rs.close();
+            rows += fetched;
+         } while (fetched == FETCH_ROWS);
+         writer.finish();
+         stmt.execute("CLOSE export_rows");
+         connection.commit();
+      } catch (SQLException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         stmt.close();
+         connection.setAutoCommit(true);
+      }
+      return rows;
+   }
+
+   // writes the rows of a result in one format
+   interface RowWriter {
+      void row(ResultSet rs) throws SQLException, IOException;
+      void finish() throws IOException;
+   }
+
+   static final class CsvWriter implements RowWriter {
+      private final Sink sink;
+      private final int columns;
+      private final StringBuilder line = new StringBuilder(256);
+
+      CsvWriter(Sink sink, ResultSetMetaData meta) throws SQLException, IOException {
+         this.sink = sink;
+         this.columns = meta.getColumnCount();
+         for (int i = 1; i <= columns; i++)
+            field(meta.getColumnName(i), i);
+         end();
+      }
+
+      public void row(ResultSet rs) throws SQLException, IOException {
+         for (int i = 1; i <= columns; i++)
+            field(rs.getString(i), i);
+         end();
+      }
+
+      // appends a value quoted as COPY ... CSV would, NULL as an empty field
+      private void field(String value, int column) {
+         if (column > 1) line.append(',');
+         if (value == null) return;
+         boolean quote = value.isEmpty();
+         for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+         }
+         if (!quote) {
+            line.append(value);
+            return;
+         }
+         line.append('"');
+         for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') line.append('"');
+            line.append(c);
+         }
+         line.append('"');
+      }
+
+      private void end() throws IOException {
+         line.append('\n');
+         byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+         sink.write(bytes, 0, bytes.length);
+         line.setLength(0);
+      }
+
+      public void finish() {
+      }
+   }
+
+   static final class ColumnarWriter implements RowWriter {
+      private final Sink sink;
+      private final byte[] types;
+      private final long[][] longs;
+      private final double[][] doubles;
+      private final String[][] texts;
+      private final boolean[][] nulls;
+      private int rows = 0;
+
+      ColumnarWriter(Sink sink, ResultSetMetaData meta) throws SQLException, IOException {
+         this.sink = sink;
+         int columns = meta.getColumnCount();
+         types = new byte[columns];
+         longs = new long[columns][];
+         doubles = new double[columns][];
+         texts = new String[columns][];
+         nulls = new boolean[columns][GROUP_ROWS];
+
+         sink.putInt(MAGIC).putInt(VERSION).putInt(columns);
+         for (int c = 0; c < columns; c++) {
+            types[c] = type(meta.getColumnType(c + 1));
+            if (types[c] == FLOAT64) doubles[c] = new double[GROUP_ROWS];
+            else if (types[c] == TEXT) texts[c] = new String[GROUP_ROWS];
+            else longs[c] = new long[GROUP_ROWS];
+            byte[] name = meta.getColumnName(c + 1).getBytes(StandardCharsets.UTF_8);
+            sink.putShort((short) name.length).write(name, 0, name.length);
+            sink.putByte(types[c]);
+         }
+      }
+
+      static byte type(int sqlType) {
+         switch (sqlType) {
+            case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+               return INT64;
+            case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC: case Types.DECIMAL:
+               return FLOAT64;
+            case Types.TIMESTAMP:
+               return TIMESTAMP;
+            default:
+               return TEXT;
+         }
+      }
+
+      public void row(ResultSet rs) throws SQLException, IOException {
+         for (int c = 0; c < types.length; c++) {
+            switch (types[c]) {
+               case INT64:
+                  longs[c][rows] = rs.getLong(c + 1);
+                  break;
+               case FLOAT64:
+                  doubles[c][rows] = rs.getDouble(c + 1);
+                  break;
+               case TIMESTAMP:
+                  Timestamp ts = rs.getTimestamp(c + 1);
+                  longs[c][rows] = ts == null ? 0 : ts.getTime();
+                  break;
+               default:
+                  texts[c][rows] = rs.getString(c + 1);
+                  break;
+            }
+            nulls[c][rows] = rs.wasNull();
+         }
+         if (++rows == GROUP_ROWS) flushGroup();
+      }
+
+      private void flushGroup() throws IOException {
+         sink.putInt(rows);
+         for (int c = 0; c < types.length; c++) {
+            byte[] bitmap = new byte[(rows + 7) / 8];
+            for (int r = 0; r < rows; r++)
+               if (nulls[c][r]) bitmap[r >> 3] |= 1 << (r & 7);
+            sink.write(bitmap, 0, bitmap.length);
+            for (int r = 0; r < rows; r++) {
+               if (nulls[c][r]) continue;
+               switch (types[c]) {
+                  case FLOAT64:
+                     sink.putDouble(doubles[c][r]);
+                     break;
+                  case TEXT:
+                     byte[] bytes = texts[c][r].getBytes(StandardCharsets.UTF_8);
+                     sink.putInt(bytes.length).write(bytes, 0, bytes.length);
+                     texts[c][r] = null;
+                     break;
+                  default:
+                     sink.putLong(longs[c][r]);
+                     break;
+               }
+            }
+         }
+         rows = 0;
+      }
+
+      public void finish() throws IOException {
+         if (rows > 0) flushGroup();
+         sink.putInt(0);
+      }
+   }
+
+   /**
+    * Exports a dataset outside the interactive program.
+    *
+    * With a shard map the exports of more than one store cover one database,
+    * named by --shard; the orders of a store are read from its shard.
+    *
+    * @param args <dbname> <port> <user> <dataset> [id] --out=<file> [--format=csv|columnar] [--gzip] [--shard=home|<shard>]
+    */
+   public static void main(String[] args) {
+      String dataset = null, id = null, out = null, shard = null;
+      Format format = Format.CSV;
+      boolean gzip = false;
+      for (int i = 3; i < args.length; i++) {
+         if (args[i].startsWith("--out=")) out = args[i].substring(6);
+         else if (args[i].startsWith("--format=")) format = Format.valueOf(args[i].substring(9).toUpperCase());
+         else if (args[i].equals("--gzip")) gzip = true;
+         else if (args[i].startsWith("--shard=")) shard = args[i].substring(8);
+         else if (dataset == null) dataset = args[i];
+         else id = args[i];
+      }
+      if (args.length < 4 || dataset == null || out == null) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            DataExport.class.getName () +
+            " <dbname> <port> <user> store-orders|manager-orders|products|supply-requests [id]" +
+            " --out=<file> [--format=csv|columnar] [--gzip] [--shard=home|<shard>]");
+         return;
+      }//end if
+
+      Retail esql = null;
+      Connection connection = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail(args[0], args[1], args[2], "");
+         Dataset d = Dataset.of(dataset);
+         if (d.needsId() && id == null)
+            throw new IllegalArgumentException(dataset + " needs a store or manager ID");
+         Retail source = esql;
+         if (d.oneStore()) {
+            source = esql.on(id);
+         } else if (esql.sharded()) {
+            // a partial export must be asked for
+            if (shard == null)
+               throw new IllegalArgumentException(ShardMap.get().oneDatabase(dataset));
+            int i = ShardMap.get().names().indexOf(shard);
+            if (i < 0 && !shard.equals("home"))
+               throw new IllegalArgumentException("Unknown shard: " + shard);
+            if (i >= 0) source = esql.sessions().get(i + 1);
+         }
+         connection = source.newConnection();
+         long start = System.nanoTime();
+         long rows = new DataExport(connection).export(d.query(id), out, format, gzip);
+         System.out.println(String.format("%d rows written to %s in %.1f s", rows, out, (System.nanoTime() - start) / 1e9));
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+      } finally {
+         try {
+            if (connection != null) connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+         if (esql != null) esql.cleanup();
+      }
+   }//end main
+
+}//end DataExport
@@ -0,0 +1,530 @@
+/*
+ * Synthetic Dataset Generator
+ * ===========================
+ *
+ * Generates arbitrarily large, referentially consistent data for the Retail
+ * schema, either as CSV files in the format of the data directory or
+ * streamed straight into the database through COPY.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * This class generates the Users, Store, Product, Warehouse, Orders,
+ * ProductUpdates and ProductSupplyRequests tables row by row. Nothing but
+ * the generator parameters is kept in memory, so the number of orders is
+ * only bounded by disk space.
+ *
+ * Skew follows the shape of real traffic: stores and products are drawn
+ * from Zipf distributions (a few hot stores and hot products get most of
+ * the orders), and users and stores are clustered around a number of city
+ * centers so that customers order from stores near them.
+ *
+ */
+public class DataGenerator {
+
+   // the product names of the original dataset, further names are numbered
+   static final String[] PRODUCT_NAMES = {
+      "7up", "Brisk", "Donuts", "Egg", "Hot and Sour Soup",
+      "Ice Cream", "Lemonade", "Orange Juice", "Pepsi", "Pudding"
+   };
+
+   final long users, stores, warehouses, orders, updates, supplyRequests;
+   final int productsPerStore, managers, clusters;
+   final long seed;
+   final double skew;
+   final int days;
+
+   final double[] clusterLatitude, clusterLongitude;
+   final Zipf storeRank, productRank;
+   final long storeMultiplier;
+   final long startEpochSecond;
+
+   public DataGenerator(Map<String, String> options) {
+      this.stores = Long.parseLong(option(options, "stores", "1000"));
+      this.users = Long.parseLong(option(options, "users", "100000"));
+      this.managers = Integer.parseInt(option(options, "managers", String.valueOf(Math.max(1, stores / 4))));
+      this.warehouses = Long.parseLong(option(options, "warehouses", "50"));
+      this.productsPerStore = Integer.parseInt(option(options, "productsPerStore", "50"));
+      this.orders = Long.parseLong(option(options, "orders", "10000000"));
+      this.updates = Long.parseLong(option(options, "updates", "100000"));
+      this.supplyRequests = Long.parseLong(option(options, "supplyRequests", "100000"));
+      this.clusters = Integer.parseInt(option(options, "clusters", "8"));
+      this.skew = Double.parseDouble(option(options, "skew", "1.0"));
+      this.days = Integer.parseInt(option(options, "days", "365"));
+      this.seed = Long.parseLong(option(options, "seed", "42"));
+
+      if (users < managers + 2)
+         throw new IllegalArgumentException("users must exceed managers + 1 (admin)");
+      if (stores > Integer.MAX_VALUE)
+         throw new IllegalArgumentException("stores must fit storeID (integer)");
+
+      SplittableRandom random = new SplittableRandom(seed);
+      this.clusterLatitude = new double[clusters];
+      this.clusterLongitude = new double[clusters];
+      for (int i = 0; i < clusters; i++) {
+         clusterLatitude[i] = 10 + random.nextDouble() * 80;
+         clusterLongitude[i] = 10 + random.nextDouble() * 80;
+      }
+      this.storeRank = new Zipf((int) stores, skew);
+      this.productRank = new Zipf(productsPerStore, skew);
+      this.storeMultiplier = coprimeMultiplier(stores);
+      this.startEpochSecond = LocalDateTime.now().minusDays(days).toEpochSecond(ZoneOffset.UTC);
+   }
+
+   /**
+    * Zipf distributed sampler over the ranks 0..n-1 using a cumulative
+    * distribution table and binary search.
+    */
+   static final class Zipf {
+      private final double[] cdf;
+
+      Zipf(int n, double exponent) {
+         cdf = new double[n];
+         double sum = 0;
+         for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+         }
+         for (int i = 0; i < n; i++)
+            cdf[i] /= sum;
+      }
+
+      int sample(SplittableRandom random) {
+         double u = random.nextDouble();
+         int lo = 0, hi = cdf.length - 1;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cdf[mid] < u) lo = mid + 1;
+            else hi = mid;
+         }
+         return lo;
+      }
+   }
+
+   // multiplier used to scatter the hot store ranks over the storeIDs
+   static long coprimeMultiplier(long n) {
+      long a = 2654435761L % Math.max(n, 1);
+      while (a > 1 && gcd(a, n) != 1) a--;
+      return Math.max(a, 1);
+   }
+
+   static long gcd(long a, long b) {
+      while (b != 0) { long t = a % b; a = b; b = t; }
+      return a;
+   }
+
+   // storeIDs are 1..stores, ranks are scattered so hot stores are not just the first IDs
+   long storeId(int rank) {
+      return (rank * storeMultiplier) % stores + 1;
+   }
+
+   static String productName(int index) {
+      if (index < PRODUCT_NAMES.length) return PRODUCT_NAMES[index];
+      return "Product " + index;
+   }
+
+   // userID 1 is the admin, the next ones the managers, the rest are customers
+   long managerId(long storeId) {
+      return 2 + (storeId - 1) % managers;
+   }
+
+   long customerCount() {
+      return users - managers - 1;
+   }
+
+   long firstCustomerId() {
+      return managers + 2;
+   }
+
+   // customers and stores belong to cluster (id % clusters)
+   long customerInCluster(int cluster, SplittableRandom random) {
+      long count = customerCount();
+      long first = firstCustomerId();
+      long perCluster = count / clusters;
+      if (perCluster == 0) return first + random.nextLong(count);
+      long k = random.nextLong(perCluster);
+      long id = first + k * clusters + ((cluster - first % clusters + clusters) % clusters);
+      return id < first + count ? id : first + random.nextLong(count);
+   }
+
+   void location(StringBuilder sb, int cluster, double spread, SplittableRandom random) {
+      double lat = clamp(clusterLatitude[cluster] + gaussian(random) * spread);
+      double lon = clamp(clusterLongitude[cluster] + gaussian(random) * spread);
+      appendFixed(sb, lat);
+      sb.append(',');
+      appendFixed(sb, lon);
+   }
+
+   static double gaussian(SplittableRandom random) {
+      // Box-Muller, one of the pair is enough here
+      double u = 1.0 - random.nextDouble();
+      return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * random.nextDouble());
+   }
+
+   static double clamp(double v) {
+      return Math.max(0.0, Math.min(99.99999, v));
+   }
+
+   // five fractional digits as in the original data, without String.format
+   static void appendFixed(StringBuilder sb, double v) {
+      long scaled = Math.round(v * 100000);
+      sb.append(scaled / 100000).append('.');
+      String frac = Long.toString(scaled % 100000);
+      for (int i = frac.length(); i < 5; i++) sb.append('0');
+      sb.append(frac);
+   }
+
+   // formats timestamps, reusing the date part while the day does not change
+   static final class TimestampFormatter {
+      private long cachedDay = Long.MIN_VALUE;
+      private String cachedDate;
+
+      void append(StringBuilder sb, long epochSecond) {
+         long day = Math.floorDiv(epochSecond, 86400L);
+         if (day != cachedDay) {
+            cachedDate = LocalDate.ofEpochDay(day).toString() + " ";
+            cachedDay = day;
+         }
+         int secondOfDay = (int) (epochSecond - day * 86400L);
+         sb.append(cachedDate);
+         twoDigits(sb, secondOfDay / 3600).append(':');
+         twoDigits(sb, secondOfDay / 60 % 60).append(':');
+         twoDigits(sb, secondOfDay % 60);
+      }
+
+      static StringBuilder twoDigits(StringBuilder sb, int v) {
+         return sb.append((char) ('0' + v / 10)).append((char) ('0' + v % 10));
+      }
+   }
+
+   // copies a finished row to the writer without creating a String
+   static final class RowWriter {
+      private final Writer out;
+      private char[] buffer = new char[256];
+
+      RowWriter(Writer out) {
+         this.out = out;
+      }
+
+      void write(StringBuilder sb) throws IOException {
+         int length = sb.length();
+         if (length > buffer.length) buffer = new char[length * 2];
+         sb.getChars(0, length, buffer, 0);
+         out.write(buffer, 0, length);
+      }
+   }
+
+   // spreads count rows evenly over the generated time span
+   long timeOf(long row, long count) {
+      return startEpochSecond + (long) ((double) row / Math.max(count, 1) * days * 86400L);
+   }
+
+   // the generators below write one table each, header first
+
+   void writeUsers(Writer out) throws IOException {
+      SplittableRandom random = new SplittableRandom(seed + 1);
+      RowWriter row = new RowWriter(out);
+      StringBuilder sb = new StringBuilder(128);
+      out.write(Table.USERS.columns + "\n");
+      for (long id = 1; id <= users; id++) {
+         sb.setLength(0);
+         String type = id == 1 ? "admin" : id < firstCustomerId() ? "manager" : "customer";
+         sb.append(id).append(",user").append(id).append(",xyz,");
+         location(sb, (int) (id % clusters), 8.0, random);
+         sb.append(',').append(type).append('\n');
+         row.write(sb);
+      }
+   }
+
+   void writeStores(Writer out) throws IOException {
+      SplittableRandom random = new SplittableRandom(seed + 2);
+      RowWriter row = new RowWriter(out);
+      StringBuilder sb = new StringBuilder(128);
+      out.write(Table.STORE.columns + "\n");
+      for (long id = 1; id <= stores; id++) {
+         sb.setLength(0);
+         sb.append(id).append(",store").append(id).append(',');
+         location(sb, (int) (id % clusters), 5.0, random);
+         LocalDate established = LocalDate.of(1950, 1, 1).plusDays(random.nextInt(25000));
+         sb.append(',').append(managerId(id)).append(',')
+           .append(established.getMonthValue()).append('/').append(established.getDayOfMonth())
+           .append('/').append(established.getYear()).append('\n');
+         row.write(sb);
+      }
+   }
+
+   void writeProducts(Writer out) throws IOException {
+      SplittableRandom random = new SplittableRandom(seed + 3);
+      RowWriter row = new RowWriter(out);
+      StringBuilder sb = new StringBuilder(64);
+      out.write(Table.PRODUCT.columns + "\n");
+      for (long id = 1; id <= stores; id++) {
+         for (int p = 0; p < productsPerStore; p++) {
+            sb.setLength(0);
+            sb.append(id).append(',').append(productName(p)).append(',')
+              .append(random.nextInt(1000)).append(',').append(1 + random.nextInt(20)).append('\n');
+            row.write(sb);
+         }
+      }
+   }
+
+   void writeWarehouses(Writer out) throws IOException {
+      SplittableRandom random = new SplittableRandom(seed + 4);
+      RowWriter row = new RowWriter(out);
+      StringBuilder sb = new StringBuilder(64);
+      out.write(Table.WAREHOUSE.columns + "\n");
+      for (long id = 1; id <= warehouses; id++) {
+         sb.setLength(0);
+         sb.append(id).append(',').append(5000 + random.nextInt(50000)).append(',');
+         appendFixed(sb, random.nextDouble() * 99.99999);
+         sb.append(',');
+         appendFixed(sb, random.nextDouble() * 99.99999);
+         sb.append('\n');
+         row.write(sb);
+      }
+   }
+
+   void writeOrders(Writer out) throws IOException {
+      SplittableRandom random = new SplittableRandom(seed + 5);
+      TimestampFormatter time = new TimestampFormatter();
+      RowWriter row = new RowWriter(out);
+      StringBuilder sb = new StringBuilder(96);
+      out.write(Table.ORDERS.columns + "\n");
+      for (long n = 1; n <= orders; n++) {
+         long storeId = storeId(storeRank.sample(random));
+         long customerId = customerInCluster((int) (storeId % clusters), random);
+         sb.setLength(0);
+         sb.append(n).append(',').append(customerId).append(',').append(storeId).append(',')
+           .append(productName(productRank.sample(random))).append(',')
+           .append(1 + random.nextInt(10)).append(',');
+         time.append(sb, timeOf(n, orders));
+         sb.append('\n');
+         row.write(sb);
+      }
+   }
+
+   void writeProductSupplyRequests(Writer out) throws IOException {
+      SplittableRandom random = new SplittableRandom(seed + 6);
+      RowWriter row = new RowWriter(out);
+      StringBuilder sb = new StringBuilder(96);
+      out.write(Table.PRODUCT_SUPPLY_REQUESTS.columns + "\n");
+      for (long n = 1; n <= supplyRequests; n++) {
+         long storeId = storeId(storeRank.sample(random));
+         sb.setLength(0);
+         sb.append(n).append(',').append(managerId(storeId)).append(',')
+           .append(1 + random.nextLong(warehouses)).append(',').append(storeId).append(',')
+           .append(productName(productRank.sample(random))).append(',')
+           .append(1 + random.nextInt(100)).append('\n');
+         row.write(sb);
+      }
+   }
+
+   void writeProductUpdates(Writer out) throws IOException {
+      SplittableRandom random = new SplittableRandom(seed + 7);
+      TimestampFormatter time = new TimestampFormatter();
+      RowWriter row = new RowWriter(out);
+      StringBuilder sb = new StringBuilder(96);
+      out.write(Table.PRODUCT_UPDATES.columns + "\n");
+      for (long n = 1; n <= updates; n++) {
+         long storeId = storeId(storeRank.sample(random));
+         sb.setLength(0);
+         sb.append(n).append(',').append(managerId(storeId)).append(',').append(storeId).append(',')
+           .append(productName(productRank.sample(random))).append(',');
+         time.append(sb, timeOf(n, updates));
+         sb.append('\n');
+         row.write(sb);
+      }
+   }
+
+   // one generated table: its name, CSV file, serial sequence, the columns written and row count
+   enum Table {
+      USERS("Users", "users.csv", "users_userID_seq", "userID,name,password,latitude,longitude,type"),
+      STORE("Store", "stores.csv", null, "storeID,name,latitude,longitude,managerID,dateEstablished"),
+      PRODUCT("Product", "products.csv", null, "storeID,productName,numberOfUnits,pricePerUnit"),
+      WAREHOUSE("Warehouse", "warehouse.csv", null, "wareHouseID,area,latitude,longitude"),
+      ORDERS("Orders", "orders.csv", "orders_orderNumber_seq", "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime"),
+      PRODUCT_SUPPLY_REQUESTS("ProductSupplyRequests", "productSupplyRequests.csv", "productsupplyrequests_requestNumber_seq",
+                              "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested"),
+      PRODUCT_UPDATES("ProductUpdates", "productUpdates.csv", "productupdates_updateNumber_seq", "updateNumber,managerID,storeID,productName,updatedOn");
+
+      public final String name, file, sequence, columns;
+
+      private Table(String _name, String _file, String _sequence, String _columns) {
+         this.name = _name;
+         this.file = _file;
+         this.sequence = _sequence;
+         this.columns = _columns;
+      }
+   }
+
+   void write(Table table, Writer out) throws IOException {
+      switch (table) {
+         case USERS: writeUsers(out); break;
+         case STORE: writeStores(out); break;
+         case PRODUCT: writeProducts(out); break;
+         case WAREHOUSE: writeWarehouses(out); break;
+         case ORDERS: writeOrders(out); break;
+         case PRODUCT_SUPPLY_REQUESTS: writeProductSupplyRequests(out); break;
+         case PRODUCT_UPDATES: writeProductUpdates(out); break;
+      }
+   }
+
+   long rows(Table table) {
+      switch (table) {
+         case USERS: return users;
+         case ORDERS: return orders;
+         case PRODUCT_SUPPLY_REQUESTS: return supplyRequests;
+         case PRODUCT_UPDATES: return updates;
+         default: return 0;
+      }
+   }
+
+   static Writer open(File file) throws IOException {
+      return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 20);
+   }
+
+   /**
+    * Writes every table as a CSV file into the given directory.
+    */
+   public void writeCsv(File dir) throws IOException {
+      dir.mkdirs();
+      for (Table table : Table.values()) {
+         long start = System.nanoTime();
+         Writer out = open(new File(dir, table.file));
+         try {
+            write(table, out);
+         } finally {
+            out.close();
+         }
+         System.out.println(String.format("%s written in %.1f s", table.file, (System.nanoTime() - start) / 1e9));
+      }
+   }
+
+   /**
+    * Streams every table into the database. The rows are written to a named
+    * pipe that the server reads with COPY ... FROM, the same way
+    * load_data.sql loads the CSV files, so nothing is staged on disk. The
+    * database must run on this machine and the tables must be empty.
+    * Generated supply requests count as delivered, and every warehouse is
+    * given opening stock.
+    */
+   public void load(Retail esql, File pipeDir) throws Exception {
+      pipeDir.mkdirs();
+      for (final Table table : Table.values()) {
+         long start = System.nanoTime();
+         final File pipe = new File(pipeDir, table.file + ".pipe");
+         pipe.delete();
+         Process mkfifo = new ProcessBuilder("mkfifo", "-m", "0666", pipe.getAbsolutePath()).inheritIO().start();
+         if (mkfifo.waitFor() != 0)
+            throw new IOException("Unable to create named pipe " + pipe);
+
+         final Exception[] writeError = new Exception[1];
+         Thread writer = new Thread(new Runnable() {
+            public void run() {
+               try {
+                  Writer out = open(pipe);
+                  try {
+                     write(table, out);
+                  } finally {
+                     out.close();
+                  }
+               } catch (Exception e) {
+                  writeError[0] = e;
+               }
+            }
+         }, "generate-" + table.file);
+         writer.start();
+
+         try {
+            // columns added by later scripts, such as the status of supply requests, keep their defaults
+            esql.executeUpdate(String.format("COPY %s (%s) FROM '%s' WITH DELIMITER ',' CSV HEADER",
+               table.name, table.columns, pipe.getAbsolutePath()));
+         } catch (Exception e) {
+            // the server never opened the pipe, open it ourselves so the writer fails and ends
+            new FileInputStream(pipe).close();
+            writer.join();
+            pipe.delete();
+            throw e;
+         }
+         writer.join();
+         pipe.delete();
+         if (writeError[0] != null) throw writeError[0];
+
+         if (table.sequence != null)
+            esql.executeUpdate(String.format("ALTER SEQUENCE %s RESTART %d", table.sequence, rows(table) + 1));
+         System.out.println(String.format("%s loaded in %.1f s", table.name, (System.nanoTime() - start) / 1e9));
+      }
+      // the generated warehouses start with the same stock as those of create_fulfillment.sql
+      esql.executeUpdate(FulfillmentScheduler.OPENING_STOCK);
+   }
+
+   /**
+    * The main execution method
+    *
+    * @param args --out=<dir> to write CSV files, or --db=<dbname> --port=<port> --user=<user>
+    *             to load the database, followed by optional --name=value sizes
+    */
+   public static void main(String[] args) {
+      Map<String, String> options = new HashMap<String, String>();
+      for (String arg : args) {
+         int eq = arg.indexOf('=');
+         if (!arg.startsWith("--") || eq < 0) {
+            System.err.println("Invalid option: " + arg);
+            return;
+         }
+         options.put(arg.substring(2, eq), arg.substring(eq + 1));
+      }
+      if (!options.containsKey("out") && !options.containsKey("db")) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            DataGenerator.class.getName () +
+            " (--out=<dir> | --db=<dbname> --port=<port> --user=<user> [--pipes=<dir>])" +
+            " [--users=N] [--stores=N] [--managers=N] [--productsPerStore=N] [--warehouses=N]" +
+            " [--orders=N] [--updates=N] [--supplyRequests=N] [--clusters=N] [--skew=s]" +
+            " [--days=N] [--seed=N]");
+         return;
+      }//end if
+
+      Retail esql = null;
+      try {
+         DataGenerator generator = new DataGenerator(options);
+         if (options.containsKey("out")) {
+            generator.writeCsv(new File(options.get("out")));
+         } else {
+            // use postgres JDBC driver.
+            Class.forName ("org.postgresql.Driver").newInstance ();
+            esql = new Retail(options.get("db"), option(options, "port", "5432"), option(options, "user", ""), "");
+            generator.load(esql, new File(option(options, "pipes", System.getProperty("java.io.tmpdir"))));
+         }
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+      } finally {
+         if (esql != null) esql.cleanup();
+      }
+   }//end main
+
+   static String option(Map<String, String> options, String name, String fallback) {
+      String value = options.get(name);
+      return value == null ? fallback : value;
+   }
+
+}//end DataGenerator
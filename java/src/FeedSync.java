@@ -0,0 +1,352 @@
+/*
+ * Feed Sync
+ * =========
+ *
+ * Applies a supplier's delta file of stock and price changes to the
+ * Product table in one set-based transaction.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class reads a CSV file with the header
+ *
+ *   storeID,productName,numberOfUnits,pricePerUnit
+ *
+ * where an empty numberOfUnits or pricePerUnit leaves that column as it
+ * is, and the last line of a product wins. The file is loaded into a
+ * staging table, by the server's COPY when the database runs on this
+ * machine, otherwise by multi-row INSERTs of BATCH_ROWS lines. Then a
+ * handful of statements apply it:
+ *
+ *   - products whose stock or price differs are updated, the stock of
+ *     striped products (see StockStripes) is moved out of their stripes,
+ *   - products new to a store are inserted, if the line has a price,
+ *   - one ProductUpdates row is written per changed product, on behalf of
+ *     the store's manager, with keys reserved in whole IdAllocator blocks.
+ *
+ * Lines for unknown stores, new products without a price and, when loaded
+ * by INSERT, malformed lines are skipped. Everything happens in one
+ * transaction, so a failed sync changes nothing.
+ *
+ * With a shard map the file is applied to the home database and to every
+ * shard in turn, each taking the lines of the stores it owns in a
+ * transaction of its own; the keys of ProductUpdates come from the home
+ * database's sequence, as everywhere else. A sync failing on one database
+ * leaves the databases before it synced.
+ *
+ */
+public class FeedSync {
+
+   // lines per INSERT when the server cannot read the file
+   static final int BATCH_ROWS = 1000;
+
+   private final Connection connection;
+   // the connection of the home database, whose sequence hands out the keys
+   private final Connection keys;
+   // SQL condition on storeID true for the lines this database takes
+   private final String owned;
+   private final boolean serverCopy;
+
+   // counts of the last sync
+   long lines, skipped, updated, inserted;
+
+   /**
+    * @param connection a connection in autocommit mode, used by this sync only
+    * @param serverCopy try the server's COPY before loading the file by INSERT
+    */
+   public FeedSync(Connection connection, boolean serverCopy) {
+      this(connection, connection, "TRUE", serverCopy);
+   }
+
+   /**
+    * @param connection a connection in autocommit mode to the database to sync, used by this sync only
+    * @param keys a connection in autocommit mode to the home database, may be connection
+    * @param owned an SQL condition on storeID true for the stores of the database, see ShardMap
+    * @param serverCopy try the server's COPY before loading the file by INSERT
+    */
+   public FeedSync(Connection connection, Connection keys, String owned, boolean serverCopy) {
+      this.connection = connection;
+      this.keys = keys;
+      this.owned = owned;
+      this.serverCopy = serverCopy;
+   }
+
+   /**
+    * Applies a delta file.
+    *
+    * @param file the delta file
+    * @throws java.sql.SQLException when the sync failed, nothing was changed then
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public void sync(File file) throws SQLException, IOException {
+      lines = skipped = updated = inserted = 0;
+      long blockSize = IdAllocator.increment(keys, IdAllocator.PRODUCT_UPDATES);
+
+      connection.setAutoCommit(false);
+      try {
+         Jdbc.execute(connection,
+            "CREATE TEMP TABLE feed_staging ( line bigserial, storeID integer, productName char(30), " +
+            "numberOfUnits integer, pricePerUnit float ) ON COMMIT DROP");
+         stage(file);
+
+         // the last line of every product
+         Jdbc.execute(connection,
+            "CREATE TEMP TABLE feed_delta ON COMMIT DROP AS " +
+            "SELECT DISTINCT ON (storeID, productName) storeID, productName, numberOfUnits, pricePerUnit " +
+            "FROM feed_staging WHERE storeID IS NOT NULL AND productName IS NOT NULL AND " + owned + " " +
+            "ORDER BY storeID, productName, line DESC");
+         Jdbc.execute(connection,
+            "CREATE TEMP TABLE feed_changed ( storeID integer, productName char(30) ) ON COMMIT DROP");
+
+         updated = count(
+            "WITH changed AS (" +
+               "UPDATE Product P SET numberOfUnits = COALESCE(D.numberOfUnits, P.numberOfUnits), " +
+                                    "pricePerUnit = COALESCE(D.pricePerUnit, P.pricePerUnit) " +
+               "FROM feed_delta D, ProductStock T WHERE P.storeID = D.storeID AND P.productName = D.productName " +
+               "AND T.storeID = P.storeID AND T.productName = P.productName " +
+               "AND (T.numberOfUnits <> COALESCE(D.numberOfUnits, T.numberOfUnits) " +
+                 "OR P.pricePerUnit <> COALESCE(D.pricePerUnit, P.pricePerUnit)) " +
+               "RETURNING P.storeID, P.productName) " +
+            "INSERT INTO feed_changed SELECT storeID, productName FROM changed");
+         // a new stock replaces the units split off into stripes as well
+         Jdbc.execute(connection,
+            "UPDATE ProductStripes S SET units = 0 FROM feed_changed C, feed_delta D " +
+            "WHERE S.storeID = C.storeID AND S.productName = C.productName " +
+            "AND D.storeID = C.storeID AND D.productName = C.productName " +
+            "AND D.numberOfUnits IS NOT NULL AND S.units > 0");
+         inserted = count(
+            "WITH added AS (" +
+               "INSERT INTO Product (storeID, productName, numberOfUnits, pricePerUnit) " +
+               "SELECT D.storeID, D.productName, COALESCE(D.numberOfUnits, 0), D.pricePerUnit " +
+               "FROM feed_delta D " +
+               "WHERE D.pricePerUnit IS NOT NULL " +
+               "AND EXISTS (SELECT 1 FROM Store S WHERE S.storeID = D.storeID) " +
+               "AND NOT EXISTS (SELECT 1 FROM Product P WHERE P.storeID = D.storeID AND P.productName = D.productName) " +
+               "RETURNING storeID, productName) " +
+            "INSERT INTO feed_changed SELECT storeID, productName FROM added");
+         skipped += count(
+            "SELECT COUNT(*) FROM feed_delta D WHERE NOT EXISTS " +
+            "(SELECT 1 FROM Product P WHERE P.storeID = D.storeID AND P.productName = D.productName)");
+
+         // one nextval per block of keys, the rows of a block take its keys in turn
+         long changed = updated + inserted;
+         if (keys == connection) {
+            Jdbc.execute(connection, String.format(
+               "CREATE TEMP TABLE feed_blocks ON COMMIT DROP AS " +
+               "SELECT b, nextval('%s') AS first FROM generate_series(0, %d) b",
+               IdAllocator.PRODUCT_UPDATES, (changed + blockSize - 1) / blockSize - 1));
+         } else {
+            Jdbc.execute(connection,
+               "CREATE TEMP TABLE feed_blocks ( b bigint, first bigint ) ON COMMIT DROP");
+            List<List<String>> blocks = Jdbc.query(keys, String.format(
+               "SELECT b, nextval('%s') FROM generate_series(0, %d) b",
+               IdAllocator.PRODUCT_UPDATES, (changed + blockSize - 1) / blockSize - 1));
+            StringBuilder values = new StringBuilder();
+            for (int i = 0; i < blocks.size(); i++) {
+               values.append(values.length() == 0 ? "" : ", ")
+                     .append('(').append(blocks.get(i).get(0).trim()).append(", ").append(blocks.get(i).get(1).trim()).append(')');
+               if ((i + 1) % BATCH_ROWS == 0 || i + 1 == blocks.size()) {
+                  Jdbc.execute(connection, "INSERT INTO feed_blocks (b, first) VALUES " + values);
+                  values.setLength(0);
+               }
+            }
+         }
+         Jdbc.execute(connection, String.format(
+            "INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productName, updatedOn) " +
+            "SELECT B.first + C.n %% %d, S.managerID, C.storeID, C.productName, now() " +
+            "FROM (SELECT storeID, productName, ROW_NUMBER() OVER (ORDER BY storeID, productName) - 1 AS n " +
+                  "FROM feed_changed) C, feed_blocks B, Store S " +
+            "WHERE B.b = C.n / %d AND S.storeID = C.storeID", blockSize, blockSize));
+
+         connection.commit();
+      } catch (SQLException e) {
+         connection.rollback();
+         throw e;
+      } catch (IOException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(true);
+      }
+   }
+
+   // the number of rows a statement changed, or the single number a query returns
+   private long count(String sql) throws SQLException {
+      if (sql.startsWith("SELECT"))
+         return Long.parseLong(Jdbc.query(connection, sql).get(0).get(0).trim());
+      Statement stmt = connection.createStatement();
+      try {
+         return stmt.executeUpdate(sql);
+      } finally {
+         stmt.close();
+      }
+   }
+
+   /**
+    * Loads the file into feed_staging, by the server's COPY if it can read
+    * the file, otherwise line by line.
+    */
+   void stage(File file) throws SQLException, IOException {
+      if (serverCopy) {
+         Jdbc.execute(connection, "SAVEPOINT feed_copy");
+         try {
+            Jdbc.execute(connection, String.format(
+               "COPY feed_staging (storeID, productName, numberOfUnits, pricePerUnit) FROM '%s' " +
+               "WITH DELIMITER ',' CSV HEADER", file.getAbsolutePath().replace("'", "''")));
+            Jdbc.execute(connection, "RELEASE SAVEPOINT feed_copy");
+            lines = count("SELECT COUNT(*) FROM feed_staging");
+            return;
+         } catch (SQLException e) {
+            // a remote server, no permission to read files or a malformed line
+            Jdbc.execute(connection, "ROLLBACK TO SAVEPOINT feed_copy");
+         }
+      }
+
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+      try {
+         reader.readLine(); // header
+         StringBuilder values = new StringBuilder();
+         int batched = 0;
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            lines++;
+            String row = values(line);
+            if (row == null) {
+               skipped++;
+               continue;
+            }
+            values.append(batched == 0 ? "" : ", ").append(row);
+            if (++batched == BATCH_ROWS) {
+               insert(values);
+               batched = 0;
+            }
+         }
+         if (batched > 0) insert(values);
+      } finally {
+         reader.close();
+      }
+   }
+
+   private void insert(StringBuilder values) throws SQLException {
+      Jdbc.execute(connection,
+         "INSERT INTO feed_staging (storeID, productName, numberOfUnits, pricePerUnit) VALUES " + values);
+      values.setLength(0);
+   }
+
+   /**
+    * @return the line as an SQL row constructor, or null if it is malformed
+    */
+   static String values(String line) {
+      List<String> fields = fields(line);
+      if (fields.size() != 4 || fields.get(0).isEmpty() || fields.get(1).isEmpty())
+         return null;
+      try {
+         int storeId = Integer.parseInt(fields.get(0).trim());
+         String units = fields.get(2).trim().isEmpty() ? "NULL" : Integer.toString(Integer.parseInt(fields.get(2).trim()));
+         String price = fields.get(3).trim().isEmpty() ? "NULL" : Double.toString(Double.parseDouble(fields.get(3).trim()));
+         return "(" + storeId + ", '" + fields.get(1).replace("'", "''") + "', " + units + ", " + price + ")";
+      } catch (NumberFormatException e) {
+         return null;
+      }
+   }
+
+   // splits a CSV line, fields may be quoted with doubled quotes inside
+   static List<String> fields(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+               field.append('"');
+               i++;
+            } else if (c == '"') {
+               quoted = false;
+            } else {
+               field.append(c);
+            }
+         } else if (c == '"') {
+            quoted = true;
+         } else if (c == ',') {
+            fields.add(field.toString());
+            field.setLength(0);
+         } else {
+            field.append(c);
+         }
+      }
+      fields.add(field.toString());
+      return fields;
+   }
+
+   /**
+    * Applies a delta file to the database, for example from the nightly job
+    * that fetches the supplier feeds.
+    *
+    * @param args <dbname> <port> <user> <delta file>
+    */
+   public static void main(String[] args) {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            FeedSync.class.getName () +
+            " <dbname> <port> <user> <delta file>");
+         return;
+      }//end if
+
+      Retail esql = null;
+      Connection keys = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail(args[0], args[1], args[2], "");
+         keys = esql.newConnection();
+         boolean serverCopy = Boolean.parseBoolean(System.getProperty("retail.feedServerCopy", "true"));
+         List<String> names = new ArrayList<String>();
+         names.add(null);
+         names.addAll(ShardMap.get().names());
+         List<Retail> sessions = esql.sessions();
+         for (int i = 0; i < sessions.size(); i++) {
+            String name = names.get(i);
+            Connection connection = i == 0 ? keys : sessions.get(i).newConnection();
+            try {
+               FeedSync sync = new FeedSync(connection, keys, ShardMap.get().owns(name), serverCopy);
+               long start = System.nanoTime();
+               sync.sync(new File(args[3]));
+               System.out.println(String.format("%s%d lines: %d products updated, %d added, %d skipped in %.1f s",
+                  esql.sharded() ? (name == null ? "home" : name) + ": " : "",
+                  sync.lines, sync.updated, sync.inserted, sync.skipped, (System.nanoTime() - start) / 1e9));
+            } finally {
+               if (connection != keys) connection.close();
+            }
+         }
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+      } finally {
+         try {
+            if (keys != null) keys.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+         if (esql != null) esql.cleanup();
+      }
+   }//end main
+
+}//end FeedSync
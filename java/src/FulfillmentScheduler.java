@@ -0,0 +1,306 @@
+/*
+ * Fulfillment Scheduler
+ * =====================
+ *
+ * Groups pending supply requests into shipment waves per warehouse and
+ * moves the stock from the warehouses to the stores when a wave completes.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class works on the tables of create_fulfillment.sql. Planning and
+ * completing waves are each one transaction of a handful of set-based
+ * statements, however many requests they cover:
+ *
+ *   plan      pending requests whose units the warehouse has unreserved,
+ *             first come first served per warehouse and product, are
+ *             grouped into waves of at most maxLines requests per
+ *             warehouse, and their units are reserved.
+ *   complete  the units of the waves' requests are added to the stores'
+ *             Product rows and removed from the warehouses' stock.
+ *
+ * A request the warehouse cannot cover stays pending, and so do the later
+ * requests for the same product from that warehouse, until stock arrives.
+ * That includes requests for products the warehouse has no stock row for,
+ * such as items new to the store; the first "receive" of the product adds
+ * the row. waitingRequests() lists the pending requests after planning.
+ * Planners and completers of all processes take turns through an advisory
+ * lock, so reservations never exceed the stock.
+ *
+ * With shards, each database plans the requests of its own stores against
+ * its own share of the warehouse stock, see ShardMap, so the lock of one
+ * database is enough.
+ *
+ */
+public class FulfillmentScheduler {
+
+   // advisory lock key held while planning or completing waves
+   static final long LOCK_KEY = 0x57415645L; // "WAVE"
+
+   // the opening stock of create_fulfillment.sql, for databases loaded otherwise
+   static final String OPENING_STOCK =
+      "INSERT INTO WarehouseStock (warehouseID, productName, unitsOnHand) " +
+      "SELECT W.warehouseID, P.productName, 1000 " +
+      "FROM Warehouse W, (SELECT DISTINCT productName FROM Product) P " +
+      "WHERE NOT EXISTS (SELECT 1 FROM WarehouseStock S " +
+      "WHERE S.warehouseID = W.warehouseID AND S.productName = P.productName)";
+
+   public static final List<String> WAVE_COLUMNS =
+      Arrays.asList("waveid", "warehouseid", "requests", "units");
+
+   public static final List<String> WAITING_COLUMNS =
+      Arrays.asList("requestnumber", "warehouseid", "productname", "unitsrequested", "unitsavailable");
+
+   private final Connection connection;
+   private final int maxLines;
+
+   /**
+    * @param connection a connection in autocommit mode, used by this scheduler only
+    * @param maxLines the most requests in one wave
+    */
+   public FulfillmentScheduler(Connection connection, int maxLines) {
+      this.connection = connection;
+      this.maxLines = maxLines;
+   }
+
+   /**
+    * Plans waves for all pending requests that can be covered.
+    *
+    * @return waveID, warehouseID, requests and units of each new wave
+    * @throws java.sql.SQLException when planning failed, nothing was planned then
+    */
+   public List<List<String>> planWaves() throws SQLException {
+      begin();
+      try {
+         Jdbc.execute(connection, String.format(
+            "CREATE TEMP TABLE wave_lines ON COMMIT DROP AS " +
+            "SELECT L.requestNumber, L.warehouseID, L.productName, L.unitsRequested, " +
+                   "(ROW_NUMBER() OVER (PARTITION BY L.warehouseID ORDER BY L.requestNumber) - 1) / %d AS wave " +
+            "FROM (SELECT R.requestNumber, R.warehouseID, R.productName, R.unitsRequested, " +
+                         "SUM(R.unitsRequested) OVER (PARTITION BY R.warehouseID, R.productName " +
+                                                     "ORDER BY R.requestNumber) AS runningUnits " +
+                  "FROM ProductSupplyRequests R WHERE R.status = 'pending') L, WarehouseStock S " +
+            "WHERE S.warehouseID = L.warehouseID AND S.productName = L.productName " +
+            "AND L.runningUnits <= S.unitsOnHand - S.unitsReserved", maxLines));
+         Jdbc.execute(connection,
+            "CREATE TEMP TABLE new_waves ON COMMIT DROP AS " +
+            "SELECT warehouseID, wave, nextval('shipmentwaves_waveID_seq') AS waveID " +
+            "FROM (SELECT DISTINCT warehouseID, wave FROM wave_lines) W");
+         Jdbc.execute(connection,
+            "INSERT INTO ShipmentWaves (waveID, warehouseID) SELECT waveID, warehouseID FROM new_waves");
+         Jdbc.execute(connection,
+            "UPDATE WarehouseStock S SET unitsReserved = S.unitsReserved + L.units " +
+            "FROM (SELECT warehouseID, productName, SUM(unitsRequested) AS units " +
+                  "FROM wave_lines GROUP BY warehouseID, productName) L " +
+            "WHERE S.warehouseID = L.warehouseID AND S.productName = L.productName");
+         Jdbc.execute(connection,
+            "UPDATE ProductSupplyRequests R SET status = 'waved', waveID = W.waveID " +
+            "FROM wave_lines L, new_waves W " +
+            "WHERE R.requestNumber = L.requestNumber AND W.warehouseID = L.warehouseID AND W.wave = L.wave");
+         List<List<String>> waves = Jdbc.query(connection,
+            "SELECT W.waveID, W.warehouseID, COUNT(*), SUM(L.unitsRequested) " +
+            "FROM new_waves W, wave_lines L WHERE W.warehouseID = L.warehouseID AND W.wave = L.wave " +
+            "GROUP BY W.waveID, W.warehouseID ORDER BY W.waveID");
+         commit();
+         return waves;
+      } catch (SQLException e) {
+         rollback();
+         throw e;
+      }
+   }
+
+   /**
+    * Completes planned waves.
+    *
+    * @param waveIds the waves to complete, or null for all planned waves
+    * @return waveID, warehouseID, requests and units of each completed wave
+    * @throws java.sql.SQLException when completing failed, nothing was completed then
+    */
+   public List<List<String>> completeWaves(List<Integer> waveIds) throws SQLException {
+      StringBuilder filter = new StringBuilder();
+      if (waveIds != null) {
+         if (waveIds.isEmpty()) return new ArrayList<List<String>>();
+         filter.append(" AND W.waveID IN (");
+         for (int i = 0; i < waveIds.size(); i++)
+            filter.append(i == 0 ? "" : ", ").append(waveIds.get(i).intValue());
+         filter.append(')');
+      }
+
+      begin();
+      try {
+         Jdbc.execute(connection,
+            "CREATE TEMP TABLE done_lines ON COMMIT DROP AS " +
+            "SELECT R.requestNumber, R.waveID, R.warehouseID, R.storeID, R.productName, R.unitsRequested " +
+            "FROM ShipmentWaves W, ProductSupplyRequests R " +
+            "WHERE W.status = 'planned' AND R.waveID = W.waveID AND R.status = 'waved'" + filter);
+         Jdbc.execute(connection,
+            "UPDATE Product P SET numberOfUnits = P.numberOfUnits + L.units " +
+            "FROM (SELECT storeID, productName, SUM(unitsRequested) AS units " +
+                  "FROM done_lines GROUP BY storeID, productName) L " +
+            "WHERE P.storeID = L.storeID AND P.productName = L.productName");
+         Jdbc.execute(connection,
+            "UPDATE WarehouseStock S SET unitsOnHand = S.unitsOnHand - L.units, " +
+                                        "unitsReserved = S.unitsReserved - L.units " +
+            "FROM (SELECT warehouseID, productName, SUM(unitsRequested) AS units " +
+                  "FROM done_lines GROUP BY warehouseID, productName) L " +
+            "WHERE S.warehouseID = L.warehouseID AND S.productName = L.productName");
+         Jdbc.execute(connection,
+            "UPDATE ProductSupplyRequests R SET status = 'delivered' " +
+            "FROM done_lines L WHERE R.requestNumber = L.requestNumber");
+         Jdbc.execute(connection,
+            "UPDATE ShipmentWaves SET status = 'completed', completedOn = now() " +
+            "WHERE waveID IN (SELECT waveID FROM done_lines)");
+         List<List<String>> waves = Jdbc.query(connection,
+            "SELECT waveID, warehouseID, COUNT(*), SUM(unitsRequested) " +
+            "FROM done_lines GROUP BY waveID, warehouseID ORDER BY waveID");
+         commit();
+         return waves;
+      } catch (SQLException e) {
+         rollback();
+         throw e;
+      }
+   }
+
+   /**
+    * @return waveID, warehouseID, requests and units of each planned wave
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<List<String>> openWaves() throws SQLException {
+      return Jdbc.query(connection,
+         "SELECT W.waveID, W.warehouseID, COUNT(R.requestNumber), SUM(R.unitsRequested) " +
+         "FROM ShipmentWaves W, ProductSupplyRequests R " +
+         "WHERE W.status = 'planned' AND R.waveID = W.waveID " +
+         "GROUP BY W.waveID, W.warehouseID ORDER BY W.waveID");
+   }
+
+   /**
+    * @return requestNumber, warehouseID, productName, unitsRequested and the
+    *         warehouse's unreserved units of each pending request, 0 without
+    *         a stock row
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<List<String>> waitingRequests() throws SQLException {
+      return Jdbc.query(connection,
+         "SELECT R.requestNumber, R.warehouseID, R.productName, R.unitsRequested, " +
+                "COALESCE(S.unitsOnHand - S.unitsReserved, 0) " +
+         "FROM ProductSupplyRequests R LEFT JOIN WarehouseStock S " +
+              "ON S.warehouseID = R.warehouseID AND S.productName = R.productName " +
+         "WHERE R.status = 'pending' ORDER BY R.requestNumber");
+   }
+
+   /**
+    * Adds units that arrived at a warehouse.
+    *
+    * @throws java.sql.SQLException when the update failed
+    */
+   public void receiveStock(int warehouseId, String productName, int units) throws SQLException {
+      begin();
+      try {
+         Jdbc.execute(connection, String.format(
+            "UPDATE WarehouseStock SET unitsOnHand = unitsOnHand + %d " +
+            "WHERE warehouseID = %d AND productName = '%s'", units, warehouseId, productName));
+         Jdbc.execute(connection, String.format(
+            "INSERT INTO WarehouseStock (warehouseID, productName, unitsOnHand) " +
+            "SELECT %d, '%s', %d WHERE NOT EXISTS (SELECT 1 FROM WarehouseStock " +
+            "WHERE warehouseID = %d AND productName = '%s')",
+            warehouseId, productName, units, warehouseId, productName));
+         commit();
+      } catch (SQLException e) {
+         rollback();
+         throw e;
+      }
+   }
+
+   private void begin() throws SQLException {
+      connection.setAutoCommit(false);
+      Jdbc.query(connection, "SELECT pg_advisory_xact_lock(" + LOCK_KEY + ")");
+   }
+
+   private void commit() throws SQLException {
+      connection.commit();
+      connection.setAutoCommit(true);
+   }
+
+   private void rollback() {
+      try {
+         connection.rollback();
+         connection.setAutoCommit(true);
+      } catch (SQLException e) {
+         // the connection is gone, the server rolled back
+      }
+   }
+
+   /**
+    * Plans or completes waves outside the interactive program, for example
+    * from cron.
+    *
+    * @param args <dbname> <port> <user> plan | list | complete [waveID ...] | receive <warehouseID> <productName> <units>
+    */
+   public static void main(String[] args) {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            FulfillmentScheduler.class.getName () +
+            " <dbname> <port> <user> plan | list | complete [waveID ...] | receive <warehouseID> <productName> <units>");
+         return;
+      }//end if
+
+      Retail esql = null;
+      Connection connection = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail(args[0], args[1], args[2], "");
+         connection = esql.newConnection();
+         FulfillmentScheduler scheduler = new FulfillmentScheduler(connection, Integer.getInteger("retail.waveMaxLines", 500));
+         String command = args[3];
+         if (command.equals("plan")) {
+            esql.printResult(WAVE_COLUMNS, scheduler.planWaves());
+            printWaiting(esql, scheduler.waitingRequests());
+         } else if (command.equals("list")) {
+            esql.printResult(WAVE_COLUMNS, scheduler.openWaves());
+         } else if (command.equals("complete")) {
+            List<Integer> waveIds = null;
+            if (args.length > 4) {
+               waveIds = new ArrayList<Integer>();
+               for (int i = 4; i < args.length; i++)
+                  waveIds.add(Integer.valueOf(args[i]));
+            }
+            esql.printResult(WAVE_COLUMNS, scheduler.completeWaves(waveIds));
+         } else if (command.equals("receive") && args.length == 7) {
+            scheduler.receiveStock(Integer.parseInt(args[4]), args[5], Integer.parseInt(args[6]));
+         } else {
+            System.err.println("Unknown command: " + command);
+         }
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+      } finally {
+         try {
+            if (connection != null) connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+         if (esql != null) esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Prints the requests planning left pending, if any.
+    */
+   static void printWaiting(Retail esql, List<List<String>> waiting) {
+      if (waiting.isEmpty()) return;
+      System.out.println(String.format("%d requests wait for warehouse stock:", waiting.size()));
+      esql.printResult(WAITING_COLUMNS, waiting);
+   }
+
+}//end FulfillmentScheduler
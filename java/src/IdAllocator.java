@@ -0,0 +1,114 @@
+/*
+ * Id Allocator
+ * ============
+ *
+ * Hands out the keys of serial columns from blocks reserved with a single
+ * nextval call.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class reserves keys the way a hi-lo generator does. The sequences
+ * of the serial columns are set to INCREMENT BY the block size
+ * (sql/src/id_blocks.sql), so one nextval returns the first key of a block
+ * nobody else gets, and the rest of the block is handed out in memory.
+ * Inserts that leave the key to the column default still work; they use up
+ * a block with one key.
+ *
+ * The block size is read from the sequence, so without the migration every
+ * key still costs one nextval. Blocks are reserved on a connection of their
+ * own: sequences ignore transactions, and a failure there must not abort
+ * the session's transaction. Keys of a block that is not used up before
+ * the process ends are skipped, so keys are unique but have gaps.
+ *
+ */
+public class IdAllocator {
+
+   public static final String ORDERS = "orders_orderNumber_seq";
+   public static final String PRODUCT_UPDATES = "productupdates_updateNumber_seq";
+   public static final String PRODUCT_SUPPLY_REQUESTS = "productsupplyrequests_requestNumber_seq";
+
+   private static final Map<String, IdAllocator> allocators = new HashMap<String, IdAllocator>();
+
+   /**
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param sequence the sequence of the serial column
+    * @return the allocator shared by all sessions of the process for that sequence
+    */
+   public static synchronized IdAllocator shared(String url, String user, String passwd, String sequence) {
+      String key = url + "|" + user + "|" + sequence;
+      IdAllocator allocator = allocators.get(key);
+      if (allocator == null) {
+         allocator = new IdAllocator(ConnectionPool.shared("ids", url, user, passwd, 1), sequence);
+         allocators.put(key, allocator);
+      }
+      return allocator;
+   }
+
+   private final ConnectionPool pool;
+   private final String sequence;
+   private long blockSize = 0;
+   private long next = 1, last = 0;
+
+   IdAllocator(ConnectionPool pool, String sequence) {
+      this.pool = pool;
+      this.sequence = sequence;
+   }
+
+   /**
+    * @return a key no other caller gets
+    * @throws java.sql.SQLException when a new block cannot be reserved
+    */
+   public synchronized long next() throws SQLException {
+      if (next > last) reserve();
+      return next++;
+   }
+
+   private void reserve() throws SQLException {
+      Connection connection = pool.borrow(10000);
+      if (connection == null)
+         throw new SQLException("Timed out reserving keys of " + sequence);
+      try {
+         if (blockSize == 0) blockSize = increment(connection, sequence);
+         long first = Long.parseLong(Jdbc.query(connection,
+            String.format("SELECT nextval('%s')", sequence)).get(0).get(0).trim());
+         next = first;
+         last = first + blockSize - 1;
+         pool.release(connection);
+      } catch (SQLException e) {
+         pool.discard(connection);
+         throw e;
+      }
+   }
+
+   /**
+    * Reads the block size of a sequence, from the sequence itself or, from
+    * PostgreSQL 10 on, pg_sequences.
+    *
+    * @return the sequence's increment, at least 1
+    * @throws java.sql.SQLException when the sequence does not exist
+    */
+   static long increment(Connection connection, String sequence) throws SQLException {
+      List<List<String>> result;
+      try {
+         result = Jdbc.query(connection, "SELECT increment_by FROM " + sequence);
+      } catch (SQLException e) {
+         result = Jdbc.query(connection, String.format(
+            "SELECT increment_by FROM pg_sequences WHERE sequencename = lower('%s')", sequence));
+      }
+      long increment = result.isEmpty() ? 1 : Long.parseLong(result.get(0).get(0).trim());
+      return Math.max(1, increment);
+   }
+
+}//end IdAllocator
@@ -0,0 +1,282 @@
+/*
+ * Inventory Feed
+ * ==============
+ *
+ * Background listener that keeps the in-process catalog current with the
+ * stock and price changes made by other sessions.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class polls the ProductChanges table that the Product trigger of
+ * create_triggers.sql writes. Every poll interval the feed reads the
+ * highest changeID, a probe of the primary key, and the oldest transaction
+ * still running; when either moved it reads the new rows of ProductChanges
+ * and re-reads the changed products from ProductStock into the Catalog.
+ * The stock a change logs is only what its writer saw: orders taking from
+ * different stripes of a product commit side by side and each logs the
+ * total without the others' units, so the feed never applies the logged
+ * values. Stores and warehouses, which change rarely, are re-read whole
+ * when the store_changes channel is notified.
+ *
+ * A change can commit long after changes with higher IDs, a long
+ * transaction takes its changeID when it writes, not when it commits. Each
+ * change carries the ID of its transaction, and the catalog keeps the
+ * horizon, the oldest transaction running when it was last caught up. A
+ * catch up reads the changes after the high-water mark and the changes of
+ * transactions at or after the horizon, so no committed change is missed
+ * however old its changeID.
+ *
+ * Product changes are polled, not pushed: asked for NOTIFY from the
+ * writers, the trigger would take the server's notification lock at the
+ * commit of every order and serialize the orders this feed serves. Polling
+ * costs each process one probe per interval and delays a change by up to
+ * retail.feedPollMillis, where a notification would arrive at commit.
+ *
+ * The feed deletes the changes older than the retention once a minute, all
+ * feeds have applied them long before.
+ *
+ * When the catalog was loaded from a snapshot, the feed only applies the
+ * changes logged since the snapshot's high-water mark and horizon, unless
+ * those were already deleted from ProductChanges.
+ *
+ * Configured through system properties:
+ *   retail.liveInventory     starts the feed in the interactive program (default true)
+ *   retail.feedPollMillis    how often to look for new changes (default 250)
+ *   retail.feedResyncMillis  catch up at least this often (default 5000)
+ *   retail.feedRetentionMinutes  age of the changes the feed deletes, 0 to keep them (default 60)
+ *
+ */
+public class InventoryFeed implements Runnable {
+
+   static final String STORE_CHANNEL = "store_changes";
+   static final long PRUNE_MILLIS = 60000;
+   // products re-read by one query
+   static final int REFRESH_KEYS = 500;
+
+   private final Retail esql;
+   private final Catalog catalog;
+   private final int pollMillis;
+   private final long resyncMillis;
+   private final int retentionMinutes;
+   private volatile boolean stopped = false;
+
+   // changeIDs read by the last catch up, a change not among them is new
+   private Set<Long> seen = new HashSet<Long>();
+
+   /**
+    * Starts the feed on a daemon thread.
+    *
+    * @param esql the session whose connection settings the feed uses
+    * @return the running feed
+    */
+   public static InventoryFeed start(Retail esql) {
+      InventoryFeed feed = new InventoryFeed(esql, Catalog.get());
+      Thread t = new Thread(feed, "inventory-feed");
+      t.setDaemon(true);
+      t.start();
+      return feed;
+   }
+
+   public InventoryFeed(Retail esql, Catalog catalog) {
+      this.esql = esql;
+      this.catalog = catalog;
+      this.pollMillis = Integer.getInteger("retail.feedPollMillis", 250);
+      this.resyncMillis = Long.getLong("retail.feedResyncMillis", 5000);
+      this.retentionMinutes = Integer.getInteger("retail.feedRetentionMinutes", 60);
+   }
+
+   public void stop() {
+      stopped = true;
+   }
+
+   public void run() {
+      long backoff = 1000;
+      while (!stopped) {
+         Connection connection = null;
+         try {
+            connection = esql.newConnection();
+            Jdbc.execute(connection, "LISTEN " + STORE_CHANNEL);
+            seen = new HashSet<Long>();
+            if (catalog.isLoaded() && canCatchUp(connection)) {
+               reloadStores(connection);
+               catchUp(connection);
+               catalog.setLive(true);
+            } else {
+               reload(connection);
+            }
+            backoff = 1000;
+
+            long lastSync = System.currentTimeMillis(), lastPrune = 0;
+            long[] last = probe(connection);
+            while (!stopped) {
+               List<String> channels = waitForNotifications(connection);
+               if (channels.contains(STORE_CHANNEL))
+                  reloadStores(connection);
+               long[] latest = probe(connection);
+               if (latest[0] != last[0] || latest[1] != last[1]
+                   || System.currentTimeMillis() - lastSync >= resyncMillis) {
+                  catchUp(connection);
+                  last = latest;
+                  lastSync = System.currentTimeMillis();
+               }
+               if (retentionMinutes > 0 && System.currentTimeMillis() - lastPrune >= PRUNE_MILLIS) {
+                  prune(connection);
+                  lastPrune = System.currentTimeMillis();
+               }
+            }
+         } catch (Exception e) {
+            // without the feed the catalog goes stale, so stop serving from it
+            catalog.setLive(false);
+            if (backoff == 1000) // only the first failure of a streak is reported
+               System.err.println("Inventory feed: " + e.getMessage());
+            try {
+               Thread.sleep(backoff);
+            } catch (InterruptedException ie) {
+               return;
+            }
+            backoff = Math.min(backoff * 2, 60000);
+         } finally {
+            try {
+               if (connection != null) connection.close();
+            } catch (SQLException e) {
+               // ignored.
+            }
+         }
+      }
+      catalog.setLive(false);
+   }
+
+   // loads the whole Product table, changes made meanwhile are re-read by the next catch up
+   void reload(Connection connection) throws SQLException {
+      long[] mark = probe(connection);
+      List<List<String>> rows = Jdbc.query(connection, Catalog.PRODUCT_QUERY);
+      catalog.load(rows, mark[0], mark[1]);
+      reloadStores(connection);
+      catchUp(connection);
+      catalog.setLive(true);
+   }
+
+   void reloadStores(Connection connection) throws SQLException {
+      catalog.loadStores(Jdbc.query(connection, Catalog.STORE_QUERY));
+      catalog.loadWarehouses(Jdbc.query(connection, Catalog.WAREHOUSE_QUERY));
+   }
+
+   /**
+    * @return the highest changeID and the oldest transaction running, all
+    *         transactions before it committed or rolled back
+    */
+   static long[] probe(Connection connection) throws SQLException {
+      List<String> row = Jdbc.query(connection,
+         "SELECT COALESCE(MAX(changeID), 0), txid_snapshot_xmin(txid_current_snapshot()) FROM ProductChanges").get(0);
+      return new long[] {Long.parseLong(row.get(0).trim()), Long.parseLong(row.get(1).trim())};
+   }
+
+   // deletes the changes older than the retention
+   void prune(Connection connection) throws SQLException {
+      Jdbc.execute(connection, String.format(
+         "DELETE FROM ProductChanges WHERE changedOn < now() - interval '%d minutes'", retentionMinutes));
+   }
+
+   // true if no change after the catalog's high-water mark was deleted from the log
+   boolean canCatchUp(Connection connection) throws SQLException {
+      String oldest = Jdbc.query(connection, "SELECT MIN(changeID) FROM ProductChanges").get(0).get(0);
+      return oldest != null && Long.parseLong(oldest.trim()) <= catalog.highWaterMark() + 1;
+   }
+
+   /**
+    * Refreshes the products changed after the high-water mark or by
+    * transactions at or after the horizon. The changes of transactions that
+    * were running at the last catch up are read again until the horizon
+    * passes them; only the changes not read before lead to a refresh.
+    */
+   void catchUp(Connection connection) throws SQLException {
+      // taken first: every transaction before it is visible to the reads below
+      long horizon = probe(connection)[1];
+      List<List<String>> changes = Jdbc.query(connection, String.format(
+         "SELECT changeID, storeID, productName FROM ProductChanges " +
+         "WHERE changeID > %d OR txid >= %d ORDER BY changeID", catalog.highWaterMark(), catalog.horizon()));
+      Set<Long> read = new HashSet<Long>();
+      // storeID and trimmed productName -> the product's newest change
+      Map<List<String>, Long> changed = new LinkedHashMap<List<String>, Long>();
+      for (List<String> change : changes) {
+         Long changeId = Long.valueOf(change.get(0).trim());
+         read.add(changeId);
+         if (!seen.contains(changeId))
+            changed.put(Arrays.asList(change.get(1).trim(), change.get(2).trim()), changeId);
+      }
+      refresh(connection, changed);
+      seen = read;
+      catalog.advance(horizon);
+   }
+
+   // re-reads the stock of the changed products, a product gone from ProductStock was deleted
+   void refresh(Connection connection, Map<List<String>, Long> changed) throws SQLException {
+      List<List<String>> keys = new ArrayList<List<String>>(changed.keySet());
+      for (int start = 0; start < keys.size(); start += REFRESH_KEYS) {
+         List<List<String>> part = keys.subList(start, Math.min(keys.size(), start + REFRESH_KEYS));
+         StringBuilder in = new StringBuilder();
+         for (List<String> key : part)
+            in.append(in.length() == 0 ? "" : ", ")
+              .append(String.format("(%s, '%s')", key.get(0), key.get(1).replace("'", "''")));
+         Map<List<String>, List<String>> rows = new HashMap<List<String>, List<String>>();
+         for (List<String> row : Jdbc.query(connection, Catalog.PRODUCT_QUERY + " WHERE (storeID, productName) IN (" + in + ")"))
+            rows.put(Arrays.asList(row.get(0).trim(), row.get(1).trim()), row);
+         for (List<String> key : part) {
+            List<String> row = rows.get(key);
+            catalog.apply(changed.get(key), row != null ? row : Arrays.asList(key.get(0), key.get(1), null, null));
+         }
+      }
+   }
+
+   /**
+    * Waits up to the poll interval for store notifications. Newer drivers can
+    * block for them; the bundled driver only receives them as part of a
+    * query result, so it sleeps and sends an empty query instead.
+    *
+    * @return the channels that were notified
+    */
+   List<String> waitForNotifications(Connection connection) throws Exception {
+      PGNotification[] notifications;
+      Method blocking = blockingGetNotifications(connection);
+      if (blocking != null) {
+         notifications = (PGNotification[]) blocking.invoke(connection, pollMillis);
+      } else {
+         Thread.sleep(pollMillis);
+         Jdbc.execute(connection, "SELECT 1");
+         notifications = ((PGConnection) connection).getNotifications();
+      }
+      List<String> channels = new ArrayList<String>();
+      if (notifications != null)
+         for (PGNotification n : notifications)
+            channels.add(n.getName());
+      return channels;
+   }
+
+   static Method blockingGetNotifications(Connection connection) {
+      try {
+         return connection.getClass().getMethod("getNotifications", int.class);
+      } catch (NoSuchMethodException e) {
+         return null;
+      }
+   }
+
+}//end InventoryFeed
@@ -0,0 +1,71 @@
+/*
+ * JDBC Helpers
+ * ============
+ *
+ * Runs single statements on a plain connection, for the background and
+ * command line work that does not go through a Retail session.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds the two helpers the inventory feed, the fulfillment
+ * scheduler, stock stripes, feed syncs, key allocation and shard pruning
+ * share. Unlike the Retail session methods they do not log slow statements
+ * or go through the workload scheduler; the caller owns the connection and
+ * its transaction.
+ *
+ */
+final class Jdbc {
+
+   private Jdbc() {
+   }
+
+   /**
+    * Runs a statement and discards its result.
+    *
+    * @throws java.sql.SQLException when the statement failed
+    */
+   static void execute(Connection connection, String sql) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         stmt.execute(sql);
+      } finally {
+         stmt.close();
+      }
+   }
+
+   /**
+    * Runs a query.
+    *
+    * @return the rows of the result, values as strings, null for NULL
+    * @throws java.sql.SQLException when the query failed
+    */
+   static List<List<String>> query(Connection connection, String sql) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(sql);
+         int numCol = rs.getMetaData().getColumnCount();
+         List<List<String>> result = new ArrayList<List<String>>();
+         while (rs.next()) {
+            List<String> record = new ArrayList<String>();
+            for (int i = 1; i <= numCol; ++i)
+               record.add(rs.getString(i));
+            result.add(record);
+         }
+         return result;
+      } finally {
+         stmt.close();
+      }
+   }
+
+}//end Jdbc
@@ -0,0 +1,549 @@
+/*
+ * Load Test Harness
+ * =================
+ *
+ * Simulates many concurrent customers, managers and admins running the
+ * Retail operations against a local PostgreSQL database and reports
+ * throughput, latency percentiles, lock waits and rejected operations.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class drives the Retail operations from a configurable number of
+ * simulated sessions. Every session owns its own Retail instance and thus its
+ * own physical connection, like the interactive program does. Sessions are
+ * seeded from the CSV files in the data directory.
+ *
+ */
+public class LoadTest {
+
+   // the operations a simulated session can run
+   enum Operation {
+      VIEW_STORES("viewStores", false),
+      VIEW_PRODUCTS("viewProducts", false),
+      PLACE_ORDER("placeOrder", false),
+      VIEW_RECENT_ORDERS("viewRecentOrders", false),
+      UPDATE_PRODUCT("updateProduct", true),
+      SUPPLY_REQUEST("supplyRequest", true),
+      FIND_PRODUCT("findProduct", false);
+
+      public final String label;
+      public final boolean managerOnly;
+
+      private Operation(String _label, boolean _managerOnly) {
+         this.label = _label;
+         this.managerOnly = _managerOnly;
+      }
+   }
+
+   static final String DEFAULT_MIX = "viewStores=15,viewProducts=35,placeOrder=30,viewRecentOrders=10,updateProduct=5,supplyRequest=5";
+
+   // seed data read from the data directory
+   static final class User {
+      String id, name, type;
+      double latitude, longitude;
+   }
+
+   static final class Store {
+      String id, managerId;
+      double latitude, longitude;
+      List<String> products = new ArrayList<String>();
+   }
+
+   private final List<User> customers = new ArrayList<User>();
+   private final List<User> managers = new ArrayList<User>();
+   private final List<User> admins = new ArrayList<User>();
+   private final List<Store> stores = new ArrayList<Store>();
+   private final Map<String, Store> storesById = new HashMap<String, Store>();
+   private final List<String> warehouses = new ArrayList<String>();
+
+   private final String dbname, dbport, user;
+   private final int[] mix = new int[Operation.values().length];
+
+   // backend pid of every session, used to attribute lock waits
+   private final Map<Integer, Session> sessionsByPid = new ConcurrentHashMap<Integer, Session>();
+   private final AtomicLongArray lockWaitSamples = new AtomicLongArray(Operation.values().length);
+
+   // sessions browse from the in-process catalog kept current by the inventory feed
+   boolean liveInventory = false;
+
+   // the product all orders go to from sessions near its store, as during a promotion
+   String hotStore, hotProduct;
+
+   private volatile boolean recording = false;
+   private volatile boolean running = true;
+
+   public LoadTest(String dbname, String dbport, String user, String mixSpec) {
+      this.dbname = dbname;
+      this.dbport = dbport;
+      this.user = user;
+      for (String entry : mixSpec.split(",")) {
+         String[] kv = entry.trim().split("=");
+         this.mix[operation(kv[0].trim()).ordinal()] = Integer.parseInt(kv[1].trim());
+      }
+   }
+
+   static Operation operation(String label) {
+      for (Operation op : Operation.values())
+         if (op.label.equalsIgnoreCase(label))
+            return op;
+      throw new IllegalArgumentException("Unknown operation: " + label);
+   }
+
+   /**
+    * Reads users, stores, products and warehouses from the CSV files of the
+    * data directory.
+    *
+    * @param dir the data directory
+    * @throws java.lang.Exception when a file cannot be read
+    */
+   public void loadSeed(File dir) throws Exception {
+      for (String[] row : readCsv(new File(dir, "users.csv"))) {
+         User u = new User();
+         u.id = row[0].trim();
+         u.name = row[1].trim();
+         u.latitude = Double.parseDouble(row[3]);
+         u.longitude = Double.parseDouble(row[4]);
+         u.type = row[5].trim().toLowerCase();
+         if (u.type.equals("customer")) customers.add(u);
+         else if (u.type.equals("manager")) managers.add(u);
+         else if (u.type.equals("admin")) admins.add(u);
+      }
+      for (String[] row : readCsv(new File(dir, "stores.csv"))) {
+         Store s = new Store();
+         s.id = row[0].trim();
+         s.latitude = Double.parseDouble(row[2]);
+         s.longitude = Double.parseDouble(row[3]);
+         s.managerId = row[4].trim();
+         stores.add(s);
+         storesById.put(s.id, s);
+      }
+      for (String[] row : readCsv(new File(dir, "products.csv"))) {
+         Store s = storesById.get(row[0].trim());
+         if (s != null) s.products.add(row[1].trim());
+      }
+      for (String[] row : readCsv(new File(dir, "warehouse.csv"))) {
+         warehouses.add(row[0].trim());
+      }
+   }
+
+   static List<String[]> readCsv(File file) throws Exception {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line = reader.readLine(); // header
+         while ((line = reader.readLine()) != null) {
+            if (!line.trim().isEmpty())
+               rows.add(line.split(",", -1));
+         }
+      } finally {
+         reader.close();
+      }
+      return rows;
+   }
+
+   /**
+    * Fixed-size latency histogram with logarithmic buckets. Every power of
+    * two is split into 32 sub-buckets, so recorded values are accurate to
+    * about 3% and memory stays constant regardless of the run length.
+    */
+   static final class LatencyHistogram {
+      private static final int SUB_BITS = 5;
+      private static final int SUB_COUNT = 1 << SUB_BITS;
+
+      private final long[] counts = new long[64 * SUB_COUNT];
+      long total = 0;
+      long max = 0;
+
+      static int index(long value) {
+         if (value < SUB_COUNT) return (int) value;
+         int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+         return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+      }
+
+      static long upperBound(int index) {
+         if (index < SUB_COUNT) return index;
+         int shift = index / SUB_COUNT - 1;
+         long sub = index % SUB_COUNT + SUB_COUNT;
+         return ((sub + 1) << shift) - 1;
+      }
+
+      void record(long value) {
+         counts[index(value)]++;
+         total++;
+         if (value > max) max = value;
+      }
+
+      void add(LatencyHistogram other) {
+         for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+         total += other.total;
+         max = Math.max(max, other.max);
+      }
+
+      long percentile(double p) {
+         if (total == 0) return 0;
+         long rank = (long) Math.ceil(p / 100.0 * total);
+         long seen = 0;
+         for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBound(i), max);
+         }
+         return max;
+      }
+   }
+
+   // per operation counters of a single session
+   static final class OpStats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      long rejected = 0;
+      long errors = 0;
+
+      void add(OpStats other) {
+         latency.add(other.latency);
+         rejected += other.rejected;
+         errors += other.errors;
+      }
+   }
+
+   /**
+    * A simulated user. Runs randomly chosen operations from the mix until
+    * the test ends.
+    */
+   final class Session implements Runnable {
+      final User user;
+      final Random random;
+      final OpStats[] stats = new OpStats[Operation.values().length];
+      final List<Store> nearbyStores = new ArrayList<Store>();
+      final List<Store> ownStores = new ArrayList<Store>();
+      final int thinkMillis;
+      Operation[] allowed;
+      Retail esql;
+      volatile Operation current = null;
+
+      Session(User user, long seed, int thinkMillis) {
+         this.user = user;
+         this.random = new Random(seed);
+         this.thinkMillis = thinkMillis;
+         for (int i = 0; i < stats.length; i++)
+            stats[i] = new OpStats();
+      }
+
+      void connect() throws Exception {
+         esql = new Retail(dbname, dbport, LoadTest.this.user, "");
+         esql.setSession(user.id, user.name, user.type);
+         for (Store s : stores) {
+            if (esql.calculateDistance(user.latitude, user.longitude, s.latitude, s.longitude) <= 30)
+               nearbyStores.add(s);
+            if (user.type.equals("admin") || s.managerId.equals(user.id))
+               ownStores.add(s);
+         }
+
+         // managers only update the stores they manage, operations without seed data to pick from are left out
+         List<Operation> ops = new ArrayList<Operation>();
+         for (Operation op : Operation.values())
+            if (mix[op.ordinal()] > 0 && (!op.managerOnly || !ownStores.isEmpty()) && hasInputs(op))
+               ops.add(op);
+         if (ops.isEmpty())
+            throw new Exception("No operation of the mix applies to user " + user.id);
+         allowed = ops.toArray(new Operation[ops.size()]);
+
+         List<List<String>> pid = esql.executeQueryAndReturnResult("SELECT pg_backend_pid()");
+         sessionsByPid.put(Integer.parseInt(pid.get(0).get(0).trim()), this);
+      }
+
+      boolean hasInputs(Operation op) {
+         switch (op) {
+            case VIEW_PRODUCTS:
+            case FIND_PRODUCT:
+            case PLACE_ORDER:
+               return !stores.isEmpty();
+            case VIEW_RECENT_ORDERS:
+               return !managers.isEmpty();
+            case SUPPLY_REQUEST:
+               return !warehouses.isEmpty();
+            default:
+               return true;
+         }
+      }
+
+      Operation pick() {
+         int sum = 0;
+         for (Operation op : allowed) sum += mix[op.ordinal()];
+         int r = random.nextInt(sum);
+         for (Operation op : allowed) {
+            r -= mix[op.ordinal()];
+            if (r < 0) return op;
+         }
+         return allowed[allowed.length - 1];
+      }
+
+      <T> T any(List<T> list) {
+         return list.get(random.nextInt(list.size()));
+      }
+
+      // runs one operation, returns false if the operation was rejected
+      // or the store picked has no products to run it on
+      boolean execute(Operation op) throws Exception {
+         switch (op) {
+            case VIEW_STORES:
+               Retail.viewStores(esql, user.name);
+               return true;
+            case VIEW_PRODUCTS:
+               Retail.viewProducts(esql, any(stores).id);
+               return true;
+            case FIND_PRODUCT: {
+               Store s = any(stores);
+               if (s.products.isEmpty()) return false;
+               Retail.findProduct(esql, user.name, any(s.products), 1 + random.nextInt(10));
+               return true;
+            }
+            case PLACE_ORDER: {
+               if (hotStore != null && nearbyStores.contains(storesById.get(hotStore)))
+                  return Retail.placeOrder(esql, hotStore, hotProduct, 1 + random.nextInt(3));
+               Store s = any(nearbyStores.isEmpty() ? stores : nearbyStores);
+               if (s.products.isEmpty()) return false;
+               return Retail.placeOrder(esql, s.id, any(s.products), 1 + random.nextInt(3));
+            }
+            case VIEW_RECENT_ORDERS:
+               Retail.viewRecentOrders(esql, any(managers).id);
+               return true;
+            case UPDATE_PRODUCT: {
+               Store s = any(ownStores);
+               if (s.products.isEmpty()) return false;
+               return Retail.updateProduct(esql, s.id, any(s.products), 20 + random.nextInt(80), -1);
+            }
+            case SUPPLY_REQUEST: {
+               Store s = any(ownStores);
+               if (s.products.isEmpty()) return false;
+               return Retail.placeProductSupplyRequests(esql, s.managerId, s.id, any(s.products),
+                  String.valueOf(1 + random.nextInt(50)), any(warehouses), null);
+            }
+            default:
+               return false;
+         }
+      }
+
+      public void run() {
+         while (running) {
+            Operation op = pick();
+            current = op;
+            long start = System.nanoTime();
+            boolean ok = false;
+            boolean failed = false;
+            try {
+               ok = execute(op);
+            } catch (Exception e) {
+               failed = true;
+            }
+            long micros = (System.nanoTime() - start) / 1000;
+            current = null;
+            if (recording) {
+               OpStats s = stats[op.ordinal()];
+               s.latency.record(micros);
+               if (failed) s.errors++;
+               else if (!ok) s.rejected++;
+            }
+            if (thinkMillis > 0) {
+               try {
+                  Thread.sleep(random.nextInt(2 * thinkMillis + 1));
+               } catch (InterruptedException e) {
+                  return;
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Samples ungranted locks and charges each sample to the operation the
+    * waiting session was running at the time.
+    */
+   final class LockMonitor implements Runnable {
+      final Retail esql;
+      final int intervalMillis;
+
+      LockMonitor(Retail esql, int intervalMillis) {
+         this.esql = esql;
+         this.intervalMillis = intervalMillis;
+      }
+
+      public void run() {
+         while (running) {
+            try {
+               Thread.sleep(intervalMillis);
+               List<List<String>> waiting = esql.executeQueryAndReturnResult(
+                  "SELECT DISTINCT pid FROM pg_locks WHERE NOT granted");
+               if (!recording) continue;
+               for (List<String> row : waiting) {
+                  if (row.get(0) == null) continue;
+                  Session s = sessionsByPid.get(Integer.parseInt(row.get(0).trim()));
+                  Operation op = s == null ? null : s.current;
+                  if (op != null) lockWaitSamples.incrementAndGet(op.ordinal());
+               }
+            } catch (Exception e) {
+               // keep sampling, a failed sample only loses resolution
+            }
+         }
+      }
+   }
+
+   /**
+    * Runs the load test and prints the report to standard out.
+    */
+   public void run(int customerCount, int managerCount, int adminCount, int warmupSeconds,
+                   int durationSeconds, int thinkMillis, int lockSampleMillis, long seed) throws Exception {
+      List<Session> sessions = new ArrayList<Session>();
+      for (int i = 0; i < customerCount && !customers.isEmpty(); i++)
+         sessions.add(new Session(customers.get(i % customers.size()), seed + sessions.size(), thinkMillis));
+      for (int i = 0; i < managerCount && !managers.isEmpty(); i++)
+         sessions.add(new Session(managers.get(i % managers.size()), seed + sessions.size(), thinkMillis));
+      for (int i = 0; i < adminCount && !admins.isEmpty(); i++)
+         sessions.add(new Session(admins.get(i % admins.size()), seed + sessions.size(), thinkMillis));
+
+      // the operations print their results, keep them off the report
+      PrintStream report = System.out;
+      System.setOut(new PrintStream(new OutputStream() {
+         public void write(int b) { }
+         public void write(byte[] b, int off, int len) { }
+      }));
+
+      Retail monitorConnection = null;
+      List<Thread> threads = new ArrayList<Thread>();
+      try {
+         for (Session s : sessions) s.connect();
+         monitorConnection = new Retail(dbname, dbport, user, "");
+         if (liveInventory) InventoryFeed.start(monitorConnection);
+
+         for (Session s : sessions) {
+            Thread t = new Thread(s, "session-" + s.user.id);
+            threads.add(t);
+            t.start();
+         }
+         Thread monitor = new Thread(new LockMonitor(monitorConnection, lockSampleMillis), "lock-monitor");
+         monitor.setDaemon(true);
+         monitor.start();
+
+         Thread.sleep(warmupSeconds * 1000L);
+         recording = true;
+         long start = System.nanoTime();
+         Thread.sleep(durationSeconds * 1000L);
+         recording = false;
+         double elapsed = (System.nanoTime() - start) / 1e9;
+         running = false;
+         for (Thread t : threads) t.join();
+
+         printReport(report, sessions, elapsed, lockSampleMillis);
+      } finally {
+         running = false;
+         System.setOut(report);
+         for (Session s : sessions)
+            if (s.esql != null) s.esql.cleanup();
+         if (monitorConnection != null) monitorConnection.cleanup();
+      }
+   }
+
+   void printReport(PrintStream out, List<Session> sessions, double elapsed, int lockSampleMillis) {
+      out.println();
+      out.println(String.format("***** Load Test: %d sessions, %.1f s *****", sessions.size(), elapsed));
+      out.println(String.format("%-18s %9s %9s %9s %9s %9s %9s %9s %9s %12s",
+         "operation", "ops", "ops/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "rejected", "errors", "lockwait ms"));
+
+      OpStats all = new OpStats();
+      long allLockSamples = 0;
+      for (Operation op : Operation.values()) {
+         OpStats merged = new OpStats();
+         for (Session s : sessions) merged.add(s.stats[op.ordinal()]);
+         if (merged.latency.total == 0) continue;
+         long samples = lockWaitSamples.get(op.ordinal());
+         printRow(out, op.label, merged, elapsed, samples * lockSampleMillis);
+         all.add(merged);
+         allLockSamples += samples;
+      }
+      printRow(out, "total", all, elapsed, allLockSamples * lockSampleMillis);
+      out.println();
+   }
+
+   static void printRow(PrintStream out, String label, OpStats s, double elapsed, long lockMillis) {
+      out.println(String.format("%-18s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %9d %9d %12d",
+         label, s.latency.total, s.latency.total / elapsed,
+         s.latency.percentile(50) / 1000.0, s.latency.percentile(95) / 1000.0,
+         s.latency.percentile(99) / 1000.0, s.latency.max / 1000.0,
+         s.rejected, s.errors, lockMillis));
+   }
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> followed by optional --name=value settings
+    */
+   public static void main(String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            LoadTest.class.getName () +
+            " <dbname> <port> <user> [--customers=N] [--managers=N] [--admins=N]" +
+            " [--duration=seconds] [--warmup=seconds] [--think=millis] [--lockSample=millis]" +
+            " [--seed=N] [--data=dir] [--live=true|false] [--mix=op=weight,...] [--hot=storeID:productName]");
+         return;
+      }//end if
+
+      Map<String, String> options = new HashMap<String, String>();
+      for (int i = 3; i < args.length; i++) {
+         String arg = args[i];
+         int eq = arg.indexOf('=');
+         if (!arg.startsWith("--") || eq < 0) {
+            System.err.println("Invalid option: " + arg);
+            return;
+         }
+         options.put(arg.substring(2, eq), arg.substring(eq + 1));
+      }
+
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+
+         LoadTest test = new LoadTest(args[0], args[1], args[2], option(options, "mix", DEFAULT_MIX));
+         test.liveInventory = Boolean.parseBoolean(option(options, "live", "false"));
+         String hot = options.get("hot");
+         if (hot != null) {
+            test.hotStore = hot.substring(0, hot.indexOf(':')).trim();
+            test.hotProduct = hot.substring(hot.indexOf(':') + 1).trim();
+         }
+         test.loadSeed(new File(option(options, "data", "data")));
+         test.run(Integer.parseInt(option(options, "customers", "16")),
+                  Integer.parseInt(option(options, "managers", "4")),
+                  Integer.parseInt(option(options, "admins", "1")),
+                  Integer.parseInt(option(options, "warmup", "5")),
+                  Integer.parseInt(option(options, "duration", "60")),
+                  Integer.parseInt(option(options, "think", "0")),
+                  Integer.parseInt(option(options, "lockSample", "50")),
+                  Long.parseLong(option(options, "seed", "42")));
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+      }
+   }//end main
+
+   static String option(Map<String, String> options, String name, String fallback) {
+      String value = options.get(name);
+      return value == null ? fallback : value;
+   }
+
+}//end LoadTest
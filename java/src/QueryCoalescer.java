@@ -0,0 +1,172 @@
+/*
+ * Query Coalescer
+ * ===============
+ *
+ * Lets sessions that issue the same read at the same time share one
+ * execution of it.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * This class keeps the reads in flight by key, the query text and the
+ * database it runs against. The first session to issue a read runs it;
+ * sessions issuing the same read before it finished wait for it and get
+ * copies of its result. Optionally a finished result is served for a short
+ * while longer.
+ *
+ * A session never gets a result whose execution started before the
+ * session's last write, so it always sees its own changes. Only the reads
+ * of browsing operations are coalesced; the reads that decide a write, such
+ * as the stock check of placeOrder, always run on their own.
+ *
+ * Configured through system properties:
+ *   retail.coalescedOperations   operations whose reads are coalesced, comma separated
+ *                                (default viewStores,viewProducts,findProduct,viewRecentUpdates,
+ *                                viewPopularProducts,viewPopularCustomers,viewStoreOrders)
+ *   retail.coalesceTtlMillis     how long a finished result is served again (default 0, not at all)
+ *   retail.coalesceCacheEntries  finished results kept at most (default 1024)
+ *
+ */
+public class QueryCoalescer {
+
+   static final String DEFAULT_OPERATIONS = "viewStores,viewProducts,findProduct,viewRecentUpdates," +
+                                            "viewPopularProducts,viewPopularCustomers,viewStoreOrders";
+
+   private static final QueryCoalescer instance = new QueryCoalescer();
+
+   /**
+    * @return the process wide coalescer
+    */
+   public static QueryCoalescer get() {
+      return instance;
+   }
+
+   /**
+    * Runs a read for the sessions waiting on it.
+    */
+   public interface Loader {
+      /**
+       * @param columns receives the column names of the result
+       * @return the rows of the result
+       * @throws java.sql.SQLException when the read failed
+       */
+      List<List<String>> load(List<String> columns) throws SQLException;
+   }
+
+   // one execution of a read, shared by the sessions that issued it meanwhile
+   static final class Flight {
+      final long started = System.nanoTime();
+      final CountDownLatch done = new CountDownLatch(1);
+      final List<String> columns = new ArrayList<String>();
+      List<List<String>> rows;
+      SQLException error;
+      long finished;
+   }
+
+   private final Set<String> operations;
+   private final long ttlNanos;
+   private final Map<String, Flight> inFlight = new HashMap<String, Flight>();
+   private final Map<String, Flight> recent;
+
+   QueryCoalescer() {
+      this.operations = new HashSet<String>(Arrays.asList(
+         System.getProperty("retail.coalescedOperations", DEFAULT_OPERATIONS).split("\\s*,\\s*")));
+      this.ttlNanos = Long.getLong("retail.coalesceTtlMillis", 0) * 1000000;
+      final int entries = Integer.getInteger("retail.coalesceCacheEntries", 1024);
+      this.recent = new LinkedHashMap<String, Flight>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Flight> eldest) {
+            return size() > entries;
+         }
+      };
+   }
+
+   /**
+    * @param operation the operation name, as set in Retail.operation
+    * @return true if the reads of the operation may be shared
+    */
+   public boolean applies(String operation) {
+      return operations.contains(operation);
+   }
+
+   /**
+    * Returns the result of a read, running it only if no usable execution
+    * of it is in flight or recent.
+    *
+    * @param key the query and the database it runs against
+    * @param notBefore the System.nanoTime() of the session's last write
+    * @param columns receives the column names, unless null
+    * @param loader runs the read
+    * @return a copy of the rows of the result
+    * @throws java.sql.SQLException when the read failed, for every session sharing it
+    */
+   public List<List<String>> fetch(String key, long notBefore, List<String> columns, Loader loader) throws SQLException {
+      Flight flight = null;
+      boolean leader = false;
+      synchronized (this) {
+         Flight cached = recent.get(key);
+         if (cached != null && cached.started >= notBefore && System.nanoTime() - cached.finished <= ttlNanos)
+            flight = cached;
+         if (flight == null) {
+            flight = inFlight.get(key);
+            if (flight == null || flight.started < notBefore) {
+               flight = new Flight();
+               inFlight.put(key, flight);
+               leader = true;
+            }
+         }
+      }
+
+      if (leader) {
+         try {
+            flight.rows = loader.load(flight.columns);
+         } catch (SQLException e) {
+            flight.error = e;
+         } finally {
+            flight.finished = System.nanoTime();
+            synchronized (this) {
+               // a session that wrote meanwhile may have started a newer flight
+               if (inFlight.get(key) == flight) inFlight.remove(key);
+               if (flight.rows != null && ttlNanos > 0) {
+                  Flight cached = recent.get(key);
+                  if (cached == null || cached.started < flight.started) recent.put(key, flight);
+               }
+            }
+            flight.done.countDown();
+         }
+         if (flight.error != null) throw flight.error;
+      } else {
+         try {
+            flight.done.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for query results");
+         }
+         if (flight.error != null)
+            throw new SQLException(flight.error.getMessage(), flight.error.getSQLState());
+         if (flight.rows == null)
+            throw new SQLException("Shared query failed");
+      }
+
+      // every session gets its own copy, callers may change the lists they get
+      if (columns != null) columns.addAll(flight.columns);
+      List<List<String>> rows = new ArrayList<List<String>>(flight.rows.size());
+      for (List<String> row : flight.rows)
+         rows.add(new ArrayList<String>(row));
+      return rows;
+   }
+
+}//end QueryCoalescer
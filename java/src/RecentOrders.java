@@ -0,0 +1,161 @@
+/*
+ * Recent Orders
+ * =============
+ *
+ * The last orders of each customer, kept in memory as orders are placed so
+ * the order history is shown without querying the Orders table again.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps, per customerID, a ring of the customer's SIZE most
+ * recent orders with the name of their store, in the columns of the
+ * customer's "View 5 recent orders" screen. A customer's ring is read from
+ * the database the first time the screen is shown, after that the orders
+ * placed in this process are added to it and the screen is served from the
+ * ring without the join and sort.
+ *
+ * At most retail.recentOrdersCustomers (10000) customers are kept, the one
+ * not viewed or ordering for the longest time is dropped first; 0 turns the
+ * rings off. Orders the customer places from another process show up when
+ * the ring is read again, retail.recentOrdersMillis (60000) after it was
+ * read last.
+ *
+ */
+public class RecentOrders {
+
+   // orders per customer
+   public static final int SIZE = 5;
+
+   // the columns of rows()
+   public static final List<String> COLUMNS = Arrays.asList(
+      "storeid", "name", "productname", "unitsordered", "ordertime");
+
+   static final int CUSTOMERS = Integer.getInteger("retail.recentOrdersCustomers", 10000);
+   static final long MAX_AGE_MILLIS = Long.getLong("retail.recentOrdersMillis", 60000);
+
+   /**
+    * The recent orders of one customer.
+    */
+   static final class Ring {
+      final List<List<String>> orders = new ArrayList<List<String>>(SIZE);
+      int next = 0; // the slot the next order goes to once the ring is full
+      long loadedAt = -1; // System.currentTimeMillis() of the read, -1 if never read
+      long version = 0; // orders added, to tell whether one came during a read
+
+      void add(List<String> order) {
+         if (orders.size() < SIZE) {
+            orders.add(order);
+         } else {
+            orders.set(next, order);
+            next = (next + 1) % SIZE;
+         }
+      }
+
+      // the orders, newest first
+      List<List<String>> newest() {
+         List<List<String>> rows = new ArrayList<List<String>>(orders.size());
+         for (int i = orders.size() - 1; i >= 0; i--)
+            rows.add(orders.get((next + i) % orders.size()));
+         return rows;
+      }
+   }
+
+   private static final RecentOrders instance = new RecentOrders(CUSTOMERS);
+
+   /**
+    * @return the process wide recent orders
+    */
+   public static RecentOrders get() {
+      return instance;
+   }
+
+   private final int capacity;
+
+   // per customerID, least recently used first
+   private final LinkedHashMap<String, Ring> customers;
+
+   RecentOrders(final int capacity) {
+      this.capacity = capacity;
+      this.customers = new LinkedHashMap<String, Ring>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Ring> eldest) {
+            return size() > capacity;
+         }
+      };
+   }
+
+   /**
+    * @return the customer's recent orders, newest first, with the columns of
+    *         COLUMNS, or null if they must be read from the database
+    */
+   public synchronized List<List<String>> rows(String customerId) {
+      Ring ring = customers.get(customerId.trim());
+      if (ring == null || ring.loadedAt < 0 || System.currentTimeMillis() - ring.loadedAt > MAX_AGE_MILLIS)
+         return null;
+      return ring.newest();
+   }
+
+   /**
+    * Marks the start of a read of the customer's orders from the database.
+    *
+    * @return the version to pass to load()
+    */
+   public synchronized long version(String customerId) {
+      if (capacity == 0) return 0;
+      String key = customerId.trim();
+      Ring ring = customers.get(key);
+      if (ring == null) {
+         ring = new Ring();
+         customers.put(key, ring);
+      }
+      return ring.version;
+   }
+
+   /**
+    * Keeps the customer's orders read from the database, unless an order
+    * was added since version() was called: the read may have missed it.
+    *
+    * @param rows the orders, newest first, with the columns of COLUMNS
+    */
+   public synchronized void load(String customerId, long version, List<List<String>> rows) {
+      Ring ring = customers.get(customerId.trim());
+      if (ring == null || ring.version != version) return;
+      ring.orders.clear();
+      ring.next = 0;
+      for (int i = Math.min(rows.size(), SIZE) - 1; i >= 0; i--)
+         ring.add(rows.get(i));
+      ring.loadedAt = System.currentTimeMillis();
+   }
+
+   /**
+    * Adds an order the customer placed, once it was committed.
+    *
+    * @param order the order, with the columns of COLUMNS
+    */
+   public synchronized void add(String customerId, List<String> order) {
+      // a customer not kept is read from the database, the order included
+      Ring ring = customers.get(customerId.trim());
+      if (ring == null) return;
+      ring.version++;
+      if (ring.loadedAt >= 0) ring.add(order);
+   }
+
+   /**
+    * @return an order time as the database outputs a timestamp
+    */
+   public static String orderTime(Timestamp ts) {
+      String time = ts.toString();
+      return time.endsWith(".0") ? time.substring(0, time.length() - 2) : time;
+   }
+
+}//end RecentOrders
@@ -0,0 +1,201 @@
+/*
+ * Result Writer
+ * =============
+ *
+ * Writes the rows of query results as text, tab separated values or JSON
+ * lines through one reused buffer.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * This class formats the rows Retail outputs. Rows are appended to one
+ * StringBuilder, reused for every result, which is handed on whenever it
+ * holds CHUNK characters and at the end of each result, instead of one
+ * print call per value. Without a writer the chunks go to System.out, as
+ * found at the time, and are flushed with every result so they interleave
+ * with the program's prompts; with a writer, typically a BufferedWriter,
+ * they are flushed when its buffer fills or by flush().
+ *
+ * TEXT is the interactive layout: a line of the column names if there are
+ * rows, then every value followed by a tab. TSV writes the column names
+ * once per result and trimmed values, escaped as in the text format of
+ * COPY, with \N for NULL. JSON writes one object per row from the column
+ * names to the trimmed values. In TSV and JSON a label set by label() leads
+ * every row, naming the script line and operation of a batch run.
+ *
+ */
+public class ResultWriter {
+
+   public enum Format { TEXT, TSV, JSON }
+
+   // characters collected before they are handed on
+   static final int CHUNK = 8192;
+
+   private final Writer out;
+   private final Format format;
+   private final StringBuilder buffer = new StringBuilder(CHUNK + 256);
+   private char[] chars = new char[0];
+
+   // the script line and operation rows are labelled with, none if 0
+   private int line = 0;
+   private String operation = null;
+
+   /**
+    * @param out the writer to write to, or null for System.out
+    */
+   public ResultWriter(Writer out, Format format) {
+      this.out = out;
+      this.format = format;
+   }
+
+   /**
+    * Labels the rows of the following results.
+    *
+    * @param line the script line, 0 for no label
+    */
+   public synchronized void label(int line, String operation) {
+      this.line = line;
+      this.operation = operation;
+   }
+
+   /**
+    * Writes a result.
+    *
+    * @param columns the column names
+    * @param rows the rows, values may be null
+    * @return the number of rows written
+    */
+   public int write(List<String> columns, List<List<String>> rows) {
+      return write(columns, rows, true);
+   }
+
+   /**
+    * Writes a part of a result, for results read in parts.
+    *
+    * @param columns the column names
+    * @param rows the rows, values may be null
+    * @param first true for the first part, whose rows the column names lead
+    * @return the number of rows written
+    */
+   public synchronized int write(List<String> columns, List<List<String>> rows, boolean first) {
+      try {
+         if (first && !rows.isEmpty() && format != Format.JSON) {
+            if (format == Format.TSV && line > 0)
+               buffer.append("line\toperation\t");
+            for (int i = 0; i < columns.size(); i++)
+               value(columns.get(i), i);
+            buffer.append('\n');
+         }
+         for (List<String> row : rows) {
+            if (format == Format.JSON) {
+               object(columns, row);
+            } else {
+               if (format == Format.TSV && line > 0)
+                  buffer.append(line).append('\t').append(operation).append('\t');
+               for (int i = 0; i < row.size(); i++)
+                  value(row.get(i), i);
+               buffer.append('\n');
+            }
+            if (buffer.length() >= CHUNK) emit();
+         }
+         emit();
+         if (out == null) System.out.flush();
+      } catch (IOException e) {
+         throw new IllegalStateException("Cannot write results: " + e.getMessage());
+      }
+      return rows.size();
+   }
+
+   // appends a value of a TEXT or TSV line
+   private void value(String value, int column) {
+      if (format == Format.TEXT) {
+         buffer.append(value).append('\t');
+         return;
+      }
+      if (column > 0) buffer.append('\t');
+      if (value == null) {
+         buffer.append("\\N");
+         return;
+      }
+      value = value.trim();
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '\\': buffer.append("\\\\"); break;
+            case '\t': buffer.append("\\t"); break;
+            case '\n': buffer.append("\\n"); break;
+            case '\r': buffer.append("\\r"); break;
+            default: buffer.append(c);
+         }
+      }
+   }
+
+   // appends a row as a JSON object on a line of its own
+   private void object(List<String> columns, List<String> row) {
+      buffer.append('{');
+      if (line > 0) {
+         buffer.append("\"line\":").append(line).append(',');
+         string("operation");
+         buffer.append(':');
+         string(operation);
+         buffer.append(',');
+      }
+      for (int i = 0; i < row.size(); i++) {
+         if (i > 0) buffer.append(',');
+         string(columns.get(i));
+         buffer.append(':');
+         if (row.get(i) == null) buffer.append("null");
+         else string(row.get(i).trim());
+      }
+      buffer.append("}\n");
+   }
+
+   private void string(String value) {
+      buffer.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"': buffer.append("\\\""); break;
+            case '\\': buffer.append("\\\\"); break;
+            case '\n': buffer.append("\\n"); break;
+            case '\r': buffer.append("\\r"); break;
+            case '\t': buffer.append("\\t"); break;
+            default:
+               if (c < 0x20) buffer.append(String.format("\\u%04x", (int) c));
+               else buffer.append(c);
+         }
+      }
+      buffer.append('"');
+   }
+
+   // hands the collected characters on and empties the buffer
+   private void emit() throws IOException {
+      if (buffer.length() == 0) return;
+      if (out == null) {
+         System.out.print(buffer);
+      } else {
+         int length = buffer.length();
+         if (chars.length < length) chars = new char[length];
+         buffer.getChars(0, length, chars, 0);
+         out.write(chars, 0, length);
+      }
+      buffer.setLength(0);
+   }
+
+   /**
+    * Writes out what the writer buffered.
+    */
+   public synchronized void flush() throws IOException {
+      emit();
+      if (out == null) System.out.flush();
+      else out.flush();
+   }
+
+}//end ResultWriter
@@ -21,13 +21,27 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.lang.Math;
 
 import java.util.Arrays;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -39,6 +53,11 @@ public class Retail {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // connection settings, kept to open further connections for background work
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -57,10 +76,37 @@ public class Retail {
       }
    }
 
+   // runs the queries of executeQueriesAndReturnResults beside the session's own
+   private static final ExecutorService FAN_OUT = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "query-fan-out");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
    private ACCESS_LEVEL access_level = ACCESS_LEVEL.NONE;
    private String userId = "";
    private String userName = "";
 
+   // the operation currently running, reported by the slow query log
+   private String operation = "";
+
+   // System.nanoTime() of this session's last write, shared reads must have started after it
+   private long lastWrite = Long.MIN_VALUE;
+
+   // rows output at a time by executeQueryAndPrintResult
+   static final int PRINT_FETCH_ROWS = 1000;
+
+   // the session of the home database, this one unless it is the session of a shard
+   private Retail home = this;
+
+   // the sessions of the shards of ShardMap by shard name, opened on first use
+   private final Map<String, Retail> shards = new LinkedHashMap<String, Retail>();
+
+   // where printResult writes rows, System.out unless a batch run set another
+   private ResultWriter output = new ResultWriter(null, ResultWriter.Format.TEXT);
+
    /**
     * Creates a new instance of Retail shop
     *
@@ -82,6 +128,9 @@ public class Retail {
 
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -90,6 +139,117 @@ public class Retail {
       }//end catch
    }//end Retail
 
+   /**
+    * Creates the session of a shard for the session of the home database.
+    *
+    * @param home the session of the home database
+    * @param url the JDBC connection URL of the shard
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   private Retail(Retail home, String url) throws SQLException {
+      this._connection = DriverManager.getConnection(url, home._user, home._passwd);
+      this._url = url;
+      this._user = home._user;
+      this._passwd = home._passwd;
+      this.home = home;
+   }//end Retail
+
+   /**
+    * Method to find the session whose database holds the rows of a store,
+    * see ShardMap. Without shards that is this session.
+    *
+    * @param storeId the storeID
+    * @return the session to run the store's statements on
+    * @throws java.sql.SQLException when failed to connect to the shard
+    */
+   public Retail on(String storeId) throws SQLException {
+      String name = ShardMap.get().shardOf(storeId);
+      return name == null ? home : home.shard(name);
+   }
+
+   /**
+    * @return true if the stores are spread over several databases
+    */
+   public boolean sharded() {
+      return !ShardMap.get().isEmpty();
+   }
+
+   /**
+    * @return the sessions of the home database and of every shard
+    * @throws java.sql.SQLException when failed to connect to a shard
+    */
+   public List<Retail> sessions() throws SQLException {
+      List<Retail> sessions = new ArrayList<Retail>();
+      sessions.add(home);
+      for (String name : ShardMap.get().names())
+         sessions.add(home.shard(name));
+      return sessions;
+   }
+
+   private synchronized Retail shard(String name) throws SQLException {
+      Retail session = this.shards.get(name);
+      if (session == null) {
+         session = new Retail(this, ShardMap.get().url(name));
+         this.shards.put(name, session);
+      }
+      // statements of the shard run as part of the operation of this session
+      session.operation = this.operation;
+      return session;
+   }
+
+   /**
+    * Method to run a query on the home database and every shard at the
+    * same time and return all their rows, for views over all stores.
+    * Without shards it is executeQueryAndReturnResult.
+    *
+    * @param query the input query string
+    * @param columns receives the column names, unless null
+    * @return the rows of all databases, those of home first
+    * @throws java.sql.SQLException when failed to execute the query on any database
+    */
+   public List<List<String>> gather (final String query, List<String> columns) throws SQLException {
+      if (!sharded()) return read(query, columns);
+
+      List<Retail> sessions = sessions();
+      List<Future<List<List<String>>>> pending = new ArrayList<Future<List<List<String>>>>();
+      for (int i = 1; i < sessions.size(); i++) {
+         final Retail session = sessions.get(i);
+         pending.add(FAN_OUT.submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws SQLException {
+               return session.read(query, null);
+            }
+         }));
+      }
+      List<List<String>> rows = new ArrayList<List<String>>(sessions.get(0).read(query, columns));
+      for (Future<List<List<String>>> shard : pending)
+         rows.addAll(result(shard));
+      return rows;
+   }//end gather
+
+   /**
+    * Method to run an update on the home database and every shard, for the
+    * reference tables every database holds a copy of.
+    *
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when update failed on any database
+    */
+   public void broadcast (String sql) throws SQLException {
+      for (Retail session : sessions())
+         session.executeUpdate(sql);
+   }//end broadcast
+
+   /**
+    * Method to run a unit of work on the home database and every shard,
+    * in one transaction per database.
+    *
+    * @param work the statements to run
+    * @throws java.sql.SQLException when the transaction failed on any database
+    */
+   public void broadcast (UnitOfWork work) throws SQLException {
+      for (Retail session : sessions())
+         session.execute(work);
+   }//end broadcast
+
    // Method to calculate euclidean distance between two latitude, longitude pairs.
    public double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
@@ -103,16 +263,67 @@ public class Retail {
     * @param sql the input SQL string
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public void executeUpdate (final String sql) throws SQLException {
+      schedule(new WorkloadScheduler.Work<Void>() {
+         public Void run(Statement stmt) throws SQLException {
+            long start = System.nanoTime();
+            // issues the update instruction
+            stmt.executeUpdate (sql);
+            logIfSlow(stmt.getConnection(), sql, start);
+            return null;
+         }
+      });
+      lastWrite = System.nanoTime();
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   /**
+    * Method to run the statements of a multi-step edit in one transaction,
+    * see UnitOfWork.
+    *
+    * @param work the statements to run
+    * @return the update count of every statement
+    * @throws java.sql.SQLException when the transaction failed, nothing was changed then
+    */
+   public int[] execute (final UnitOfWork work) throws SQLException {
+      int[] counts = schedule(new WorkloadScheduler.Work<int[]>() {
+         public int[] run(Statement stmt) throws SQLException {
+            long start = System.nanoTime();
+            int[] counts = work.run(stmt.getConnection());
+            // logged statement by statement but without plans, EXPLAIN takes one statement
+            SlowQueryLog.get().recordBatch(operation, work.statements(), System.nanoTime() - start);
+            return counts;
+         }
+      });
+      lastWrite = System.nanoTime();
+      return counts;
+   }//end execute
 
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   /**
+    * Runs statements on the connection and under the admission limits of
+    * the workload class of the current operation.
+    *
+    * @param work the statements to run
+    * @return the result of the work
+    * @throws java.sql.SQLException when the work failed or was not admitted
+    */
+   <T> T schedule(WorkloadScheduler.Work<T> work) throws SQLException {
+      WorkloadScheduler scheduler = WorkloadScheduler.shared(this._url, this._user, this._passwd);
+      return scheduler.run(WorkloadScheduler.classify(this.operation), this._connection, work);
+   }
+
+   /**
+    * Hands a finished statement to the slow query log.
+    *
+    * @param connection the connection the statement ran on
+    * @param sql the statement that was run
+    * @param start the System.nanoTime() at which the statement was issued
+    */
+   private void logIfSlow(Connection connection, String sql, long start) {
+      long elapsed = System.nanoTime() - start;
+      SlowQueryLog log = SlowQueryLog.get();
+      if (log.isSlow(elapsed))
+         log.record(connection, this.operation, sql, elapsed);
+   }
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -123,40 +334,71 @@ public class Retail {
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public int executeQueryAndPrintResult (final String query) throws SQLException {
+      if (QueryCoalescer.get().applies(this.operation) && this._connection.getAutoCommit()) {
+         // a browsing result, small and possibly shared with other sessions
+         List<String> columns = new ArrayList<String>();
+         List<List<String>> rows = read(query, columns);
+         return printResult(columns, rows);
+      }
+      return schedule(new WorkloadScheduler.Work<Integer>() {
+         public Integer run(Statement stmt) throws SQLException {
+            return printCursor(stmt, query);
+         }
+      });
    }//end executeQuery
 
+   /**
+    * Issues a query through a cursor and outputs its rows PRINT_FETCH_ROWS
+    * at a time, so a long result is neither held in memory whole nor
+    * waited for before its first rows show.
+    *
+    * @param stmt the statement to issue the query with
+    * @param query the input query string
+    * @return the number of rows output
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   private int printCursor (Statement stmt, String query) throws SQLException {
+      long start = System.nanoTime();
+      Connection connection = stmt.getConnection();
+      // cursors live in a transaction, the caller's if it has one
+      boolean own = connection.getAutoCommit();
+      if (own) connection.setAutoCommit(false);
+      int total = 0;
+      try {
+         stmt.execute("DECLARE print_rows NO SCROLL CURSOR FOR " + query);
+         List<String> columns = new ArrayList<String>();
+         List<List<String>> page = new ArrayList<List<String>>();
+         do {
+            page.clear();
+            ResultSet rs = stmt.executeQuery("FETCH FORWARD " + PRINT_FETCH_ROWS + " FROM print_rows");
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+            if (columns.isEmpty())
+               for (int i = 1; i <= numCol; i++)
+                  columns.add(rsmd.getColumnName(i));
+            while (rs.next()) {
+               List<String> record = new ArrayList<String>(numCol);
+               for (int i = 1; i <= numCol; ++i)
+                  record.add(rs.getString (i));
+               page.add(record);
+            }
+            rs.close();
+            home.output.write(columns, page, total == 0);
+            total += page.size();
+         } while (page.size() == PRINT_FETCH_ROWS);
+         stmt.execute("CLOSE print_rows");
+         if (own) connection.commit();
+      } catch (SQLException e) {
+         if (own) connection.rollback();
+         throw e;
+      } finally {
+         if (own) connection.setAutoCommit(true);
+      }
+      logIfSlow(connection, query, start);
+      return total;
+   }//end printCursor
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
@@ -167,8 +409,62 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      return read(query, null);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Runs a query under the current operation's workload class. Sessions
+    * of this process running the same query of a browsing operation at the
+    * same time share one execution of it.
+    *
+    * @param query the input query string
+    * @param columns receives the column names, unless null
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   private List<List<String>> read (final String query, List<String> columns) throws SQLException {
+      QueryCoalescer coalescer = QueryCoalescer.get();
+      if (!coalescer.applies(this.operation) || !this._connection.getAutoCommit()) {
+         final List<String> names = columns;
+         return schedule(new WorkloadScheduler.Work<List<List<String>>>() {
+            public List<List<String>> run(Statement stmt) throws SQLException {
+               return readResult(stmt, query, names);
+            }
+         });
+      }
+      return coalescer.fetch(this._url + "|" + this._user + "|" + query, this.lastWrite, columns,
+         new QueryCoalescer.Loader() {
+            public List<List<String>> load(final List<String> names) throws SQLException {
+               return schedule(new WorkloadScheduler.Work<List<List<String>>>() {
+                  public List<List<String>> run(Statement stmt) throws SQLException {
+                     return readResult(stmt, query, names);
+                  }
+               });
+            }
+         });
+   }//end read
+
+   private List<List<String>> executeQueryAndReturnResult (Connection connection, String query) throws SQLException {
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Statement stmt = connection.createStatement ();
+      try {
+         return readResult(stmt, query, null);
+      } finally {
+         stmt.close ();
+      }
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Issues a query and reads its whole result.
+    *
+    * @param stmt the statement to issue the query with
+    * @param query the input query string
+    * @param columns receives the column names, unless null
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   private List<List<String>> readResult (Statement stmt, String query, List<String> columns) throws SQLException {
+      long start = System.nanoTime();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -179,10 +475,11 @@ public class Retail {
        */
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
+      if (columns != null)
+         for (int i = 1; i <= numCol; i++)
+            columns.add(rsmd.getColumnName(i));
 
       // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
       List<List<String>> result  = new ArrayList<List<String>>();
       while (rs.next()){
         List<String> record = new ArrayList<String>();
@@ -190,10 +487,83 @@ public class Retail {
 			record.add(rs.getString (i));
         result.add(record);
       }//end while
-      stmt.close ();
+      rs.close ();
+      logIfSlow(stmt.getConnection(), query, start);
       return result;
-   }//end executeQueryAndReturnResult
+   }//end readResult
+
+   /**
+    * Method to execute independent input queries (i.e. SELECTs) at the
+    * same time. The first query runs on this session's connection, the
+    * others on connections of a pool shared by the sessions of this process,
+    * so the time taken is that of the slowest query instead of the sum. When
+    * no pooled connection is free the remaining queries run one after another.
+    *
+    * @param queries the input query strings
+    * @return the result of every query as a list of records, in order
+    * @throws java.sql.SQLException when failed to execute a query
+    */
+   public List<List<List<String>>> executeQueriesAndReturnResults (String... queries) throws SQLException {
+      List<Retail> sessions = new ArrayList<Retail>();
+      for (int i = 0; i < queries.length; i++)
+         sessions.add(this);
+      return executeQueriesAndReturnResults(sessions, queries);
+   }//end executeQueriesAndReturnResults
+
+   /**
+    * Method to execute independent input queries at the same time, each on
+    * the database of its own session, for example the session of the shard
+    * of a store, see on().
+    *
+    * @param sessions the session to run each query on, in order
+    * @param queries the input query strings
+    * @return the result of every query as a list of records, in order
+    * @throws java.sql.SQLException when failed to execute a query
+    */
+   public List<List<List<String>>> executeQueriesAndReturnResults (List<Retail> sessions, String... queries) throws SQLException {
+      List<Future<List<List<String>>>> pending = new ArrayList<Future<List<List<String>>>>();
+      for (int i = 1; i < queries.length; i++) {
+         final String query = queries[i];
+         Retail session = sessions.get(i);
+         final ConnectionPool pool = ConnectionPool.shared("validation", session._url, session._user, session._passwd,
+            Integer.getInteger("retail.validationPoolSize", 4));
+         pending.add(FAN_OUT.submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call() throws SQLException {
+               Connection connection = pool.borrow(0);
+               if (connection == null) return null; // pool busy, run it on the session's connection
+               try {
+                  List<List<String>> result = executeQueryAndReturnResult(connection, query);
+                  pool.release(connection);
+                  return result;
+               } catch (SQLException e) {
+                  pool.discard(connection);
+                  throw e;
+               }
+            }
+         }));
+      }
+
+      List<List<List<String>>> results = new ArrayList<List<List<String>>>();
+      results.add(sessions.get(0).executeQueryAndReturnResult(queries[0]));
+      for (int i = 0; i < pending.size(); i++) {
+         List<List<String>> result = result(pending.get(i));
+         results.add(result != null ? result : sessions.get(i + 1).executeQueryAndReturnResult(queries[i + 1]));
+      }
+      return results;
+   }//end executeQueriesAndReturnResults
 
+   // waits for a query running on another thread
+   private static List<List<String>> result(Future<List<List<String>>> pending) throws SQLException {
+      try {
+         return pending.get();
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause().getMessage());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for query results");
+      }
+   }
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -202,21 +572,24 @@ public class Retail {
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   public int executeQuery (final String query) throws SQLException {
+      return schedule(new WorkloadScheduler.Work<Integer>() {
+         public Integer run(Statement stmt) throws SQLException {
+            long start = System.nanoTime();
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery (query);
+
+            int rowCount = 0;
+
+            // iterates through the result set and count nuber of results.
+            while (rs.next()){
+               rowCount++;
+            }//end while
+            rs.close ();
+            logIfSlow(stmt.getConnection(), query, start);
+            return rowCount;
+         }
+      });
    }
 
    /**
@@ -229,18 +602,73 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+	final String query = String.format("Select currval('%s')", sequence);
+	return schedule(new WorkloadScheduler.Work<Integer>() {
+	   public Integer run(Statement stmt) throws SQLException {
+	      long start = System.nanoTime();
+	      ResultSet rs = stmt.executeQuery (query);
+	      int value = rs.next() ? rs.getInt(1) : -1;
+	      rs.close ();
+	      logIfSlow(stmt.getConnection(), query, start);
+	      return value;
+	   }
+	});
+   }
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   /**
+    * Method to reserve the key of a row about to be inserted, instead of
+    * leaving it to the column default and reading it back with currval.
+    *
+    * @param sequence the sequence of the serial column, see IdAllocator
+    * @return the key of the new row
+    * @throws java.sql.SQLException when failed to reserve keys
+    */
+   public long nextId(String sequence) throws SQLException {
+      // keys come from the home database, so they are unique over all shards
+      return IdAllocator.shared(home._url, home._user, home._passwd, sequence).next();
+   }
+
+   /**
+    * Method to open another physical connection to the same database,
+    * used by background work that must not share this session's connection.
+    *
+    * @return the new connection, to be closed by the caller
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection newConnection() throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }
+
+   /**
+    * Method to output rows that were not read from a ResultSet, for example
+    * from the in-process catalog, in the same format as
+    * executeQueryAndPrintResult.
+    *
+    * @param columns the column names
+    * @param rows the rows to output
+    * @return the number of rows output
+    */
+   public int printResult (List<String> columns, List<List<String>> rows) {
+      // the sessions of shards print through their home session
+      return home.output.write(columns, rows);
+   }//end printResult
+
+   /**
+    * Method to send the output of printResult and executeQueryAndPrintResult
+    * to another writer, for example the buffered one of a batch run.
+    *
+    * @param output the writer
+    */
+   void setOutput(ResultWriter output) {
+      this.output = output;
    }
 
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      for (Retail session : this.shards.values())
+         session.cleanup();
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -256,17 +684,39 @@ public class Retail {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      // a script of operations to run instead of the menus, see BatchRunner
+      String script = null;
+      ResultWriter.Format format = ResultWriter.Format.TSV;
+      boolean usage = args.length < 3;
+      for (int i = 3; i < args.length && !usage; i++) {
+         if (args[i].startsWith("--batch=")) script = args[i].substring(8);
+         else if (args[i].equals("--format=tsv")) format = ResultWriter.Format.TSV;
+         else if (args[i].equals("--format=json")) format = ResultWriter.Format.JSON;
+         else usage = true;
+      }
+      if (usage || (args.length > 3 && script == null)) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Retail.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--batch=<script>|- [--format=tsv|json]]");
          return;
       }//end if
 
-      Greeting();
+      // the rows of a batch run go to standard output alone
+      PrintStream console = System.out;
+      boolean batchFailed = false;
+      if (script != null) {
+         System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+         }));
+      }
+      else {
+         Greeting();
+      }
       Retail esql = null;
+      File snapshotFile = new File(System.getProperty("retail.catalogSnapshot", "catalog.snapshot"));
       try{
          // use postgres JDBC driver.
          Class.forName ("org.postgresql.Driver").newInstance ();
@@ -277,7 +727,25 @@ public class Retail {
          String user = args[2];
          esql = new Retail (dbname, dbport, user, "");
 
-         boolean keepon = true;
+         // keep the in-process catalog current with other sessions' changes,
+         // starting from the last catalog snapshot, the feed applies what changed since
+         if (Boolean.parseBoolean(System.getProperty("retail.liveInventory", "true"))) {
+            if (!snapshotFile.getPath().isEmpty())
+               CatalogSnapshot.loadIfPresent(snapshotFile, Catalog.get());
+            InventoryFeed.start(esql);
+         }
+
+         if (script != null) {
+            BufferedReader lines = script.equals("-") ? in : new BufferedReader(new FileReader(script));
+            try {
+               ResultWriter output = new ResultWriter(new BufferedWriter(new OutputStreamWriter(console), 1 << 16), format);
+               batchFailed = !new BatchRunner(esql, output).run(lines, System.err);
+            } finally {
+               lines.close();
+            }
+         }
+
+         boolean keepon = script == null;
          while(keepon) {
             // These are sample SQL statements
             System.out.println("");
@@ -311,6 +779,11 @@ public class Retail {
                 System.out.println("7. View 5 Popular Items");
                 System.out.println("8. View 5 Popular Customers");
                 System.out.println("9. Place Product Supply Request to Warehouse");
+                System.out.println("10. Find a Product in Stores within 30 miles");
+                System.out.println("11. View Store Catchments");
+                System.out.println("12. Manage Shipment Waves");
+                System.out.println("13. Export Data to File");
+                System.out.println("14. View Live Sales");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
@@ -324,11 +797,15 @@ public class Retail {
                    case 7: viewPopularProducts(esql); break;
                    case 8: viewPopularCustomers(esql); break;
                    case 9: placeProductSupplyRequests(esql); break;
+                   case 10: findProduct(esql); break;
+                   case 11: viewCatchments(esql); break;
+                   case 12: manageShipmentWaves(esql); break;
+                   case 13: exportData(esql); break;
+                   case 14: viewLiveSales(esql); break;
 
                    case 20:
                      // Reset access level on logout
-                     esql.access_level = ACCESS_LEVEL.NONE;
-                     esql.userId = "";
+                     esql.endSession();
                      usermenu = false;
                      break;
                    default : System.out.println("Unrecognized choice!"); break;
@@ -338,9 +815,14 @@ public class Retail {
          }//end while
       }catch(Exception e) {
          System.err.println (e.getMessage ());
+         batchFailed = true;
       }finally{
          // make sure to cleanup the created table and close the connection.
          try{
+            // leave a current snapshot for the next start, when this process is the one asked to
+            if (Boolean.getBoolean("retail.writeCatalogSnapshot")
+                && !snapshotFile.getPath().isEmpty() && Catalog.get().isLive())
+               CatalogSnapshot.write(snapshotFile, Catalog.get());
             if(esql != null) {
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
@@ -349,7 +831,10 @@ public class Retail {
          }catch (Exception e) {
             // ignored.
          }//end try
+         System.setOut(console);
       }//end try
+      // cron sees a batch run with failed operations fail
+      if (script != null && batchFailed) System.exit(1);
    }//end main
 
    public static void Greeting(){
@@ -385,6 +870,7 @@ public class Retail {
     **/
    public static void CreateUser(Retail esql){
       try{
+         esql.operation = "CreateUser";
          System.out.print("\tEnter name: ");
          String name = in.readLine();
          System.out.print("\tEnter password: ");
@@ -399,6 +885,14 @@ public class Retail {
 			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
 
          esql.executeUpdate(query);
+
+         //every shard holds a copy of the users, under the key the user got at home
+         if (esql.sharded()) {
+            query = String.format("INSERT INTO USERS (userID, name, password, latitude, longitude, type) VALUES (%d, '%s','%s', %s, %s,'%s')", esql.getCurrSeqVal("users_userid_seq"), name, password, latitude, longitude, type);
+            List<Retail> sessions = esql.sessions();
+            for (Retail shard : sessions.subList(1, sessions.size()))
+               shard.executeUpdate(query);
+         }
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -412,6 +906,7 @@ public class Retail {
     **/
    public static String LogIn(Retail esql){
       try{
+         esql.operation = "LogIn";
          String name = "";
          String password = "";
          System.out.print("\tEnter name: ");
@@ -423,26 +918,7 @@ public class Retail {
 
          // We want to extract user type from query results
          int userNum = esql.executeQueryAndPrintResult(query); // for debugging
-         List<List<String>> qResults = esql.executeQueryAndReturnResult(query);
-         if (!qResults.isEmpty()) {
-            // Check user type and adjust access level
-            String LoginType = qResults.get(0).get(5).trim();
-            esql.userId = qResults.get(0).get(0).trim();
-            esql.userName = qResults.get(0).get(1).trim();
-            switch (LoginType) {
-               case "customer":
-                  esql.access_level = ACCESS_LEVEL.CUSTOMER;
-                  break;
-               case "manager":
-                  esql.access_level = ACCESS_LEVEL.MANAGER;
-                  break;
-               case "admin":
-                  esql.access_level = ACCESS_LEVEL.ADMIN;
-                  break;
-               default:
-                  throw new Exception("Unknown access type: " + LoginType);
-            }
-
+         if (LogIn(esql, name, password)) {
             return name;
          }
          return null;
@@ -452,6 +928,70 @@ public class Retail {
       }
    }//end
 
+   //log the session in as the given user, returns false if the credentials are wrong
+   public static boolean LogIn(Retail esql, String name, String password) throws Exception {
+      esql.operation = "LogIn";
+      String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
+      List<List<String>> qResults = esql.executeQueryAndReturnResult(query);
+      if (qResults.isEmpty()) {
+         return false;
+      }
+      // Check user type and adjust access level
+      String LoginType = qResults.get(0).get(5).trim();
+      esql.setSession(qResults.get(0).get(0).trim(), qResults.get(0).get(1).trim(), LoginType);
+      return true;
+   }
+
+   /**
+    * Sets the user this session acts as and adjusts the access level
+    * according to the user type.
+    *
+    * @param id the userID of the user
+    * @param name the name of the user
+    * @param type the user type, one of 'customer', 'manager' or 'admin'
+    * @throws java.lang.Exception when the user type is unknown
+    */
+   void setSession(String id, String name, String type) throws Exception {
+      this.userId = id;
+      this.userName = name;
+      switch (type) {
+         case "customer":
+            this.access_level = ACCESS_LEVEL.CUSTOMER;
+            break;
+         case "manager":
+            this.access_level = ACCESS_LEVEL.MANAGER;
+            break;
+         case "admin":
+            this.access_level = ACCESS_LEVEL.ADMIN;
+            break;
+         default:
+            throw new Exception("Unknown access type: " + type);
+      }
+   }//end setSession
+
+   /**
+    * Logs the current user out.
+    */
+   void endSession() {
+      this.access_level = ACCESS_LEVEL.NONE;
+      this.userId = "";
+      this.userName = "";
+   }//end endSession
+
+   // the access level of the current user, 0 if none is logged in, 1 customer, 2 manager, 3 admin
+   int accessLevel() {
+      return this.access_level.val;
+   }
+
+   // the userID and name of the current user, empty if none is logged in
+   String userId() {
+      return this.userId;
+   }
+
+   String userName() {
+      return this.userName;
+   }
+
 // Rest of the functions definition go in here
    public static String getInput(String message) {
       String input = "";
@@ -469,34 +1009,107 @@ public class Retail {
     if (esql.access_level.val == 0) { System.out.println("Error: FORBIDDEN"); return; }
 
      try{
-       String query = String.format("SELECT name, latitude, longitude FROM USERS WHERE name = '%s'", esql.userName);
+       viewStores(esql, esql.userName);
+       return;
+
+     } catch(Exception e){
+        System.err.println (e.getMessage ());
+        return;
+     }
+   }
+
+   //print stores within 30 miles of the given user, returns the number of stores listed
+   public static int viewStores(Retail esql, String userName) throws Exception {
+       esql.operation = "viewStores";
+       String query = String.format("SELECT name, latitude, longitude FROM USERS WHERE name = '%s'", userName);
        List<List<String>> result = esql.executeQueryAndReturnResult(query);
        double lat1 = Double.parseDouble(result.get(0).get(1).trim());
        double long1 = Double.parseDouble(result.get(0).get(2).trim());
 
 
-        query = String.format("SELECT name, latitude, longitude FROM Store");
-        result = esql.executeQueryAndReturnResult(query);
+        Catalog catalog = Catalog.get();
+        // the catalog holds the stores of the home database only
+        if (catalog.isLive() && !esql.sharded()) {
+          // name, latitude, longitude of the catalog's store rows
+          result = new ArrayList<List<String>>();
+          for (List<String> store : catalog.stores())
+            result.add(store.subList(1, 4));
+        }
+        else {
+          query = String.format("SELECT name, latitude, longitude FROM Store");
+          result = esql.gather(query, null);
+        }
 
 
         System.out.println("");
         System.out.println("Stores Within 30 Miles:");
+        List<List<String>> stores = new ArrayList<List<String>>();
         for (int i = 0; i < result.size(); i++){
           double lat2 = Double.parseDouble(result.get(i).get(1));
           double long2 = Double.parseDouble(result.get(i).get(2));
 
           if (esql.calculateDistance(lat1, long1, lat2, long2) <= 30){
-            System.out.println(result.get(i).get(0));
+            stores.add(Collections.singletonList(result.get(i).get(0)));
           }
 
        }
+       esql.printResult(Arrays.asList("name"), stores);
        System.out.println("");
-       return;
+       return stores.size();
+   }
 
-     } catch(Exception e){
-        System.err.println (e.getMessage ());
-        return;
-     }
+   //print the stores within 30 miles that have enough units of a product
+   public static void findProduct(Retail esql) {
+      if (esql.access_level.val == 0) { System.out.println("Error: FORBIDDEN"); return; }
+
+      String prodName = getInput("Enter Product Name");
+      String numUnits = getInput("Enter Minimum Number of Units");
+
+      int ResponseLength = 0;
+      try {
+         ResponseLength = findProduct(esql, esql.userName, prodName, Integer.parseInt(numUnits.trim()));
+      } catch (NumberFormatException e) {
+         System.out.println("Error: number of units must be a number");
+         return;
+      } catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+      System.out.println(String.format("[%s Results]", ResponseLength));
+   }
+
+   //print the stores within 30 miles of the given user that have at least numUnits of a product,
+   //nearest first, then cheapest, returns the number of stores listed
+   public static int findProduct(Retail esql, String userName, String prodName, int numUnits) throws Exception {
+      esql.operation = "findProduct";
+      List<List<String>> result = esql.executeQueryAndReturnResult(
+         String.format("SELECT latitude, longitude FROM USERS WHERE name = '%s'", userName));
+      double lat1 = Double.parseDouble(result.get(0).get(0).trim());
+      double long1 = Double.parseDouble(result.get(0).get(1).trim());
+
+      List<List<String>> rows;
+      Catalog catalog = Catalog.get();
+      // the catalog holds the stores of the home database only
+      if (catalog.isLive() && !esql.sharded()) {
+         rows = catalog.availability(lat1, long1, 30, prodName, numUnits);
+      } else {
+         // one query over every store in the square around the user instead of one per store
+         result = esql.gather(String.format(
+            "SELECT S.storeID, S.name, S.latitude, S.longitude, P.numberOfUnits, P.pricePerUnit " +
+            "FROM Store S, ProductStock P WHERE P.storeID = S.storeID AND P.productName = '%s' " +
+            "AND P.numberOfUnits >= %d AND S.latitude BETWEEN %s AND %s AND S.longitude BETWEEN %s AND %s",
+            prodName, numUnits, lat1 - 30, lat1 + 30, long1 - 30, long1 + 30), null);
+         rows = new ArrayList<List<String>>();
+         for (List<String> r : result) {
+            double distance = esql.calculateDistance(lat1, long1,
+               Double.parseDouble(r.get(2).trim()), Double.parseDouble(r.get(3).trim()));
+            if (distance <= 30)
+               rows.add(Arrays.asList(r.get(0), r.get(1), String.format("%.2f", distance), r.get(4), r.get(5)));
+         }
+         Catalog.sortByDistanceAndPrice(rows);
+      }
+
+      esql.printResult(Arrays.asList("storeid", "name", "distance", "numberofunits", "priceperunit"), rows);
+      return rows.size();
    }
 
    //print all products given a store ID
@@ -505,14 +1118,9 @@ public class Retail {
 
       String sId = getInput("Enter StoreId");
 
-      String query = String.format("SELECT * " +
-                                   "FROM PRODUCT " +
-                                   "WHERE storeID = '%s'"
-                                   , sId);
-
       int ResponseLength = 0;
       try {
-         ResponseLength = esql.executeQueryAndPrintResult(query);
+         ResponseLength = viewProducts(esql, sId);
       } catch(Exception e){
          System.err.println (e.getMessage());
       }
@@ -520,6 +1128,26 @@ public class Retail {
 
    }
 
+   //print all products of the given store, returns the number of products
+   public static int viewProducts(Retail esql, String sId) throws Exception {
+      esql.operation = "viewProducts";
+
+      // served from memory while the inventory feed keeps the catalog current
+      Catalog catalog = Catalog.get();
+      if (catalog.isLive()) {
+         List<List<String>> rows = catalog.products(sId);
+         if (rows != null)
+            return esql.printResult(Catalog.PRODUCT_COLUMNS, rows);
+      }
+
+      String query = String.format("SELECT * " +
+                                   "FROM ProductStock " +
+                                   "WHERE storeID = '%s'"
+                                   , sId);
+
+      return esql.on(sId).executeQueryAndPrintResult(query);
+   }
+
    //make an order
   public static void placeOrder(Retail esql) {
 
@@ -536,93 +1164,148 @@ public class Retail {
         temp = in.readLine();
         numUnits = Integer.parseInt(temp);
 
+        placeOrder(esql, storeID, prodName, numUnits);
+        return;
 
-        //get user info
-        String query = String.format("SELECT name, latitude, longitude, userId FROM USERS WHERE name = '%s'", esql.userName);
-        List<List<String>> result = esql.executeQueryAndReturnResult(query);
+      } catch(Exception e){
+         System.err.println (e.getMessage ());
+         return;
+      }
+
+
+
+   }
+
+   //make an order for the current user, returns false if the order was rejected
+   public static boolean placeOrder(Retail esql, String storeID, String prodName, int numUnits) throws Exception {
+        esql.operation = "placeOrder";
+        //the store's rows may live on a shard, the user's on the home database
+        final Retail store = esql.on(storeID);
+        //get user, store and product info at once, the lookups do not depend on each other
+        String query;
+        List<List<List<String>>> lookups = esql.executeQueriesAndReturnResults(Arrays.asList(esql, store, store),
+           String.format("SELECT name, latitude, longitude, userId FROM USERS WHERE name = '%s'", esql.userName),
+           String.format("SELECT storeID, latitude, longitude, name FROM Store WHERE storeID = '%s'", storeID),
+           String.format("SELECT numberOfUnits, pricePerUnit FROM ProductStock WHERE storeID = '%s' AND productName = '%s'", storeID, prodName));
+
+        //user info
+        List<List<String>> result = lookups.get(0);
         double lat1 = Double.parseDouble(result.get(0).get(1).trim());
         double long1 = Double.parseDouble(result.get(0).get(2).trim());
         int userIDnum = Integer.parseInt(result.get(0).get(3).trim());
 
-        //get store info
-        //query = String.format("SELECT storeID, latitude, longitude FROM Store");
-        query = String.format("SELECT storeID, latitude, longitude FROM Store WHERE storeID = '%s'", storeID);
-        result = esql.executeQueryAndReturnResult(query);
+        //store info
+        result = lookups.get(1);
 
         //check if store exists
         if (result.size() == 0){
          System.out.println("Error: store number " + storeID + " does not exist");
          System.out.println("");
-         return;
+         return false;
         }
 
         double lat2 = Double.parseDouble(result.get(0).get(1));
         double long2 = Double.parseDouble(result.get(0).get(2));
+        List<String> storeRow = result.get(0);
 
         //check id store specified is within 30 miles, if not return
         if (esql.calculateDistance(lat1, long1, lat2, long2) > 30){
          System.out.println("Error: store too far away");
          System.out.println("");
-         return;
+         return false;
         }
 
         //validate product EXISTS
-        query = String.format("SELECT numberOfUnits FROM Product WHERE storeID = '%s' AND productName = '%s'", storeID, prodName);
-        result = esql.executeQueryAndReturnResult(query);
+        result = lookups.get(2);
         if (result.size() == 0){
          System.out.println("Error: product name " + prodName + " does not exist at this store");
          System.out.println("");
-         return;
+         return false;
         }
 
         //validate quantity doesnt exceed
         int itemQuantity = Integer.parseInt(result.get(0).get(0));
+        double pricePerUnit = Double.parseDouble(result.get(0).get(1).trim());
         if (itemQuantity < numUnits || numUnits < 1){
          System.out.println(String.format("Error: invalid quantity, max is %s, min is 1", itemQuantity));
          System.out.println("");
-         return;
+         return false;
         }
 
         Timestamp ts = Timestamp.from(Instant.now());
 
-        //decrease the product quantity accordingly
-        query = String.format("UPDATE Product SET numberOfUnits = %s WHERE storeID = '%s' AND productName = '%s'", itemQuantity - numUnits, storeID, prodName);
-        esql.executeUpdate(query);
+        //take the units from a stripe if the product is striped, from the Product row otherwise
+        int taken = store.schedule(new WorkloadScheduler.Work<Integer>() {
+           public Integer run(Statement stmt) throws SQLException {
+              return StockStripes.takeUnits(stmt.getConnection(), storeID, prodName, numUnits);
+           }
+        });
+        store.lastWrite = System.nanoTime();
+        if (taken == StockStripes.SOLD_OUT){
+         System.out.println("Error: not enough units left, the product sold out meanwhile");
+         System.out.println("");
+         return false;
+        }
 
         //log the order
-        query = "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime)" +
-          "VALUES ( '" + userIDnum + "', '" + storeID + "', '" + prodName + "', '"  + numUnits + "', '" + ts.toString() + "' );";
-        esql.executeUpdate(query);
-        System.out.println("Order Placed!");
+        long orderNumber = esql.nextId(IdAllocator.ORDERS);
+        query = "INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime)" +
+          "VALUES ( " + orderNumber + ", '" + userIDnum + "', '" + storeID + "', '" + prodName + "', '"  + numUnits + "', '" + ts.toString() + "' );";
+        store.executeUpdate(query);
+        SalesWindow.get().record(orderNumber, storeID, prodName, numUnits, pricePerUnit, ts.getTime());
+        RecentOrders.get().add(Integer.toString(userIDnum), Arrays.asList(storeRow.get(0), storeRow.get(3),
+           String.format("%-30s", prodName), Integer.toString(numUnits), RecentOrders.orderTime(ts)));
+        System.out.println("Order Placed! Order number: " + orderNumber);
 
         System.out.println("");
-        return;
-
-      } catch(Exception e){
-         System.err.println (e.getMessage ());
-         return;
-      }
-
-
-
+        return true;
    }
 
    public static void viewRecentOrders(Retail esql) {
       if (esql.access_level.val == 0) { System.out.println("Error: FORBIDDEN"); return; }
 
+      String mId = "";
+      if (esql.access_level == ACCESS_LEVEL.ADMIN) {
+         mId = getInput("Enter ManagerId");
+      }
+
+      int ResponseLength = 0;
+      try {
+         ResponseLength = viewRecentOrders(esql, mId);
+      } catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+      System.out.println(String.format("[%s Results]", ResponseLength));
+   }
+
+   //print recent orders visible to the current user, mId is only used by admins
+   public static int viewRecentOrders(Retail esql, String mId) throws Exception {
+      esql.operation = "viewRecentOrders";
       String query = "";
 
       switch (esql.access_level) {
          case CUSTOMER:
             System.out.println("***** Last 5 Orders *****");
-            query = String.format("SELECT S.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime " +
-                                  "FROM STORE S, ORDERS O " +
-                                  "WHERE S.storeID = O.storeID AND customerID = '%s' " +
-                                  "ORDER BY O.orderTime DESC " +
-                                  "LIMIT 5"
-                                   , esql.userId);
-            break;
+            // repeat views are served from the customer's ring of recent orders
+            RecentOrders recent = RecentOrders.get();
+            List<List<String>> orders = recent.rows(esql.userId);
+            if (orders == null) {
+               long version = recent.version(esql.userId);
+               query = String.format("SELECT S.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime " +
+                                     "FROM STORE S, ORDERS O " +
+                                     "WHERE S.storeID = O.storeID AND customerID = '%s' " +
+                                     "ORDER BY O.orderTime DESC " +
+                                     "LIMIT 5"
+                                      , esql.userId);
+               // the orders of every shard, merged newest first
+               orders = esql.sharded() ? ShardMap.newest(esql.gather(query, null), 4, RecentOrders.SIZE)
+                                       : esql.executeQueryAndReturnResult(query);
+               recent.load(esql.userId, version, orders);
+            }
+            return esql.printResult(RecentOrders.COLUMNS, orders);
          case MANAGER:
+            // every order of the stores, a report rather than part of the order path
+            esql.operation = "viewStoreOrders";
             System.out.println("***** Orders *****");
             query = String.format("SELECT O.customerID, U.name, O.storeID, O.productName, O.orderTime " +
                                     "FROM USERS U, STORE S, ORDERS O " +
@@ -631,74 +1314,46 @@ public class Retail {
                                     ,esql.userId);
             break;
          case ADMIN:
-            try {
-               String mId = getInput("Enter ManagerId");
-               System.out.println("***** Orders *****");
-               query = String.format("SELECT O.customerID, U.name, O.storeID, O.productName, O.orderTime " +
-                                    "FROM USERS U, STORE S, ORDERS O " +
-                                    "WHERE S.managerID = %s AND S.storeID = O.storeID AND U.userID = O.customerID " +
-                                    "ORDER BY O.orderTime DESC"
-                                    ,mId);
-            }catch(Exception e){
-               System.err.println (e.getMessage ());
-            }
+            esql.operation = "viewStoreOrders";
+            System.out.println("***** Orders *****");
+            query = String.format("SELECT O.customerID, U.name, O.storeID, O.productName, O.orderTime " +
+                                 "FROM USERS U, STORE S, ORDERS O " +
+                                 "WHERE S.managerID = %s AND S.storeID = O.storeID AND U.userID = O.customerID " +
+                                 "ORDER BY O.orderTime DESC"
+                                 ,mId);
             break;
          default:
             System.out.println("Unknown Access Level: " + esql.access_level.val);
             break;
       }
 
-      int ResponseLength = 0;
-      try {
-         ResponseLength = esql.executeQueryAndPrintResult(query);
-      } catch(Exception e){
-         System.err.println (e.getMessage());
-      }
-      System.out.println(String.format("[%s Results]", ResponseLength));
+      if (!esql.sharded())
+         return esql.executeQueryAndPrintResult(query);
+
+      // the orders of every shard, merged newest first
+      List<String> columns = new ArrayList<String>();
+      List<List<String>> rows = ShardMap.newest(esql.gather(query, columns), 4, 0);
+      return esql.printResult(columns, rows);
    }
 
 
    public static void updateProductMenu(Retail esql){
      try{
+       esql.operation = "updateProduct";
        String storeID = "";
        String prodName = "";
        String temp = "";
        int numUnits = -1;
        double ppu = -1;
-       String query;
-       List<List<String>> result;
        boolean miniMenu = true;
        boolean miniMenu2 = true;
 
        System.out.print("Enter store ID: ");
        storeID = in.readLine();
-
-       query = String.format("SELECT managerID FROM Store WHERE storeID = '%s'", storeID);
-       result = esql.executeQueryAndReturnResult(query);
-
-       //check if store exists
-       if (result.size() == 0){
-        System.out.println("Error: store number " + storeID + " does not exist");
-        System.out.println("");
-        return;
-       }
-
-       //check if manager is current user if not admin
-       if (Integer.parseInt(result.get(0).get(0).trim()) != Integer.parseInt(esql.userId) && esql.access_level.val != ACCESS_LEVEL.ADMIN.val){
-        System.out.println("Error: you are not the manager of store " + storeID);
-        System.out.println("");
-        return;
-       }
-
        System.out.print("Enter store product name: ");
        prodName = in.readLine();
 
-       //validate product EXISTS
-       query = String.format("SELECT numberOfUnits FROM Product WHERE storeID = '%s' AND productName = '%s'", storeID, prodName);
-       result = esql.executeQueryAndReturnResult(query);
-       if (result.size() == 0){
-        System.out.println("Error: product name " + prodName + " does not exist at this store");
-        System.out.println("");
+       if (!productUpdateAllowed(esql, storeID, prodName)){
         return;
        }
 
@@ -745,38 +1400,86 @@ public class Retail {
          }
        }
 
+       updateProduct(esql, storeID, prodName, numUnits, ppu);
+
+     } catch(Exception e){
+        System.err.println (e.getMessage ());
+        return;
+     }
+   }
+
+   //check that the product exists in a store the current user manages, admins manage all stores
+   public static boolean productUpdateAllowed(Retail esql, String storeID, String prodName) throws Exception {
+       //check store and product at once
+       List<List<List<String>>> lookups = esql.on(storeID).executeQueriesAndReturnResults(
+          String.format("SELECT managerID FROM Store WHERE storeID = '%s'", storeID),
+          String.format("SELECT numberOfUnits FROM Product WHERE storeID = '%s' AND productName = '%s'", storeID, prodName));
+       List<List<String>> result = lookups.get(0);
+
+       //check if store exists
+       if (result.size() == 0){
+        System.out.println("Error: store number " + storeID + " does not exist");
+        System.out.println("");
+        return false;
+       }
+
+       //check if manager is current user if not admin
+       if (Integer.parseInt(result.get(0).get(0).trim()) != Integer.parseInt(esql.userId) && esql.access_level.val != ACCESS_LEVEL.ADMIN.val){
+        System.out.println("Error: you are not the manager of store " + storeID);
+        System.out.println("");
+        return false;
+       }
+
+       //validate product EXISTS
+       result = lookups.get(1);
+       if (result.size() == 0){
+        System.out.println("Error: product name " + prodName + " does not exist at this store");
+        System.out.println("");
+        return false;
+       }
+       return true;
+   }
+
+   //apply a product update by the current user, -1 leaves a field unchanged
+   public static boolean updateProduct(Retail esql, String storeID, String prodName, int numUnits, double ppu) throws Exception {
+       esql.operation = "updateProduct";
+       Retail store = esql.on(storeID);
+       String query;
 
        //update query
-       //Product and ProductUpdates tables will need to be updated accordingly if any updates take place
+       //Product and ProductUpdates tables are updated in one transaction if any updates take place
        if (numUnits == -1 && ppu == -1){
-         return;
+         return false;
        }
+       UnitOfWork update = new UnitOfWork();
        if (numUnits > -1){
          query = String.format("UPDATE Product SET numberOfUnits = %s WHERE storeID = '%s' AND productName = '%s'", numUnits, storeID, prodName);
          //System.out.println(query);
-         esql.executeUpdate(query);
+         update.add(query);
+         //the new quantity replaces the units split off into stripes as well,
+         //zeroed after the Product row is locked like StockStripes refills do
+         query = String.format("UPDATE ProductStripes SET units = 0 WHERE storeID = '%s' AND productName = '%s' AND units > 0", storeID, prodName);
+         update.add(query);
        }
        if (ppu > -1){
          query = String.format("UPDATE Product SET pricePerUnit = %s WHERE storeID = '%s' AND productName = '%s'", ppu, storeID, prodName);
          //System.out.println(query);
-         esql.executeUpdate(query);
+         update.add(query);
        }
        Timestamp ts = Timestamp.from(Instant.now());
-       query = String.format("INSERT INTO ProductUpdates (managerID, storeID, productName, updatedOn) VALUES ('%s','%s', '%s', '%s')", esql.userId, storeID, prodName, ts.toString());
+       query = String.format("INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productName, updatedOn) VALUES (%d, '%s','%s', '%s', '%s')", esql.nextId(IdAllocator.PRODUCT_UPDATES), esql.userId, storeID, prodName, ts.toString());
       // System.out.println(query);
-       esql.executeUpdate(query);
+       update.add(query);
+       store.execute(update);
 
        System.out.println("Product updated!");
        System.out.println();
-
-     } catch(Exception e){
-        System.err.println (e.getMessage ());
-        return;
-     }
+       return true;
    }
 
    public static void updateUserMenu(Retail esql){
      try{
+       esql.operation = "updateUser";
        String userID = "";
        String temp = "";
        String query;
@@ -873,21 +1576,23 @@ public class Retail {
        if (newName.equals("") && newPW.equals("") && newLat == 0 && newLong == 0){
          return;
        }
+       UnitOfWork update = new UnitOfWork();
        if (!newName.equals("")){
          query = String.format("UPDATE Users SET name = '%s' WHERE userID = '%s'", newName, userID);
          //System.out.println(query);
-         esql.executeUpdate(query);
+         update.add(query);
        }
        if (!newPW.equals("")){
          query = String.format("UPDATE Users SET password = '%s' WHERE userID = '%s'", newPW, userID);
          //System.out.println(query);
-         esql.executeUpdate(query);
+         update.add(query);
        }
        if (newLat != 0 || newLong != 0){
          query = String.format("UPDATE Users SET latitude = %s, longitude = %s WHERE userID = '%s'", newLat, newLong, userID);
          //System.out.println(query);
-         esql.executeUpdate(query);
+         update.add(query);
        }
+       esql.broadcast(update);
        System.out.println("User info updated!");
        System.out.println();
 
@@ -948,6 +1653,18 @@ public class Retail {
             break;
       }
 
+      int ResponseLength = 0;
+      try {
+         ResponseLength = viewRecentUpdates(esql, mId);
+      } catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+      System.out.println(String.format("[%s Results]", ResponseLength));
+   }
+
+   //print the 5 most recent product updates of the given manager
+   public static int viewRecentUpdates(Retail esql, String mId) throws Exception {
+      esql.operation = "viewRecentUpdates";
       System.out.println("***** Top 5 Popular Products *****");
       String query = String.format("SELECT * " +
                                   "FROM PRODUCTUPDATES " +
@@ -955,13 +1672,12 @@ public class Retail {
                                   "ORDER BY updatedOn DESC " +
                                   "LIMIT 5", mId);
 
-      int ResponseLength = 0;
-      try {
-         ResponseLength = esql.executeQueryAndPrintResult(query);
-      } catch(Exception e){
-         System.err.println (e.getMessage());
-      }
-      System.out.println(String.format("[%s Results]", ResponseLength));
+      if (!esql.sharded())
+         return esql.executeQueryAndPrintResult(query);
+
+      // the manager's stores may be on several shards, the 5 newest of all of them
+      List<String> columns = new ArrayList<String>();
+      return esql.printResult(columns, ShardMap.newest(esql.gather(query, columns), 4, 5));
    }
 
    public static void viewPopularProducts(Retail esql) {
@@ -982,6 +1698,18 @@ public class Retail {
             break;
       }
 
+      int ResponseLength = 0;
+      try {
+         ResponseLength = viewPopularProducts(esql, mId);
+      } catch(Exception e){if (esql.access_level.val < ACCESS_LEVEL.MANAGER.val) { System.out.println("Error: FORBIDDEN"); return; }
+         System.err.println (e.getMessage());
+      }
+      System.out.println(String.format("[%s Results]", ResponseLength));
+   }
+
+   //print the 5 best selling products over the stores of the given manager
+   public static int viewPopularProducts(Retail esql, String mId) throws Exception {
+      esql.operation = "viewPopularProducts";
       System.out.println("***** Top 5 Popular Products *****");
       String query = String.format("SELECT Os.productName " +
                             "FROM " +
@@ -994,13 +1722,16 @@ public class Retail {
                             "LIMIT 5"
                             , mId);
 
-      int ResponseLength = 0;
-      try {
-         ResponseLength = esql.executeQueryAndPrintResult(query);
-      } catch(Exception e){if (esql.access_level.val < ACCESS_LEVEL.MANAGER.val) { System.out.println("Error: FORBIDDEN"); return; }
-         System.err.println (e.getMessage());
-      }
-      System.out.println(String.format("[%s Results]", ResponseLength));
+      if (!esql.sharded())
+         return esql.executeQueryAndPrintResult(query);
+
+      // the totals of every shard, added up before picking the top 5
+      query = String.format("SELECT O.productName, SUM(O.unitsOrdered) " +
+                            "FROM ORDERS O, STORE S " +
+                            "WHERE S.managerID = '%s' AND S.storeID = O.storeID " +
+                            "GROUP BY O.productName"
+                            , mId);
+      return esql.printResult(Arrays.asList("productname"), ShardMap.largest(esql.gather(query, null), 5));
    }
 
    public static void viewPopularCustomers(Retail esql) {
@@ -1022,6 +1753,18 @@ public class Retail {
       }
 
 
+      int ResponseLength = 0;
+      try {
+         ResponseLength = viewPopularCustomers(esql, mId);
+      } catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+      System.out.println(String.format("[%s Results]", ResponseLength));
+   }
+
+   //print the 5 best customers over the stores of the given manager
+   public static int viewPopularCustomers(Retail esql, String mId) throws Exception {
+      esql.operation = "viewPopularCustomers";
       System.out.println("***** Top 5 Customers *****");
       String query = String.format("SELECT Us.name " +
                             "FROM " +
@@ -1034,17 +1777,40 @@ public class Retail {
                             "LIMIT 5"
                             , mId);
 
-      int ResponseLength = 0;
+      if (!esql.sharded())
+         return esql.executeQueryAndPrintResult(query);
+
+      // the totals of every shard, added up before picking the top 5
+      query = String.format("SELECT U.name, SUM(O.customerID) " +
+                            "FROM USERS U, ORDERS O, STORE S " +
+                            "WHERE S.managerID = '%s' AND S.storeID = O.storeID AND U.userID = O.customerID " +
+                            "GROUP BY U.name"
+                            , mId);
+      return esql.printResult(Arrays.asList("name"), ShardMap.largest(esql.gather(query, null), 5));
+   }
+
+   //print the customers within 30 miles of every store, admins only
+   public static void viewCatchments(Retail esql) {
+      if (esql.access_level != ACCESS_LEVEL.ADMIN) { System.out.println("Error: FORBIDDEN"); return; }
+
       try {
-         ResponseLength = esql.executeQueryAndPrintResult(query);
+         viewCatchments(esql, 30);
       } catch(Exception e){
          System.err.println (e.getMessage());
       }
-      System.out.println(String.format("[%s Results]", ResponseLength));
+   }
+
+   //print the customers within radius of every store, returns the number of stores listed
+   public static int viewCatchments(Retail esql, double radius) throws Exception {
+      esql.operation = "viewCatchments";
+      CatchmentReport report = CatchmentReport.run(esql, radius);
+      report.print(esql);
+      return report.storeId.length;
    }
 
    public static void placeProductSupplyRequests(Retail esql) {
       try {
+         esql.operation = "placeProductSupplyRequests";
          String mId = "";
 
          switch (esql.access_level) {
@@ -1063,63 +1829,281 @@ public class Retail {
          }
 
          String storeId = getInput("Enter StoreId");
+         String productName = getInput("Enter Product Name");
+         String quantity = getInput("Enter quantity");
+         String warehouseId = getInput("Enter WarehouseId");
+
+         List<List<List<String>>> checks = checkProductSupplyRequest(esql, mId, storeId, productName, warehouseId);
+         if (!supplyRequestAllowed(checks))
+            return;
+
+         String price = null;
+         if (checks.get(1).isEmpty()) {
+            price = getInput("Enter per-unit price for new Item");
+         }
 
+         submitProductSupplyRequest(esql, mId, storeId, productName, quantity, warehouseId, price, checks.get(1));
+
+      } catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+
+   //place a supply request for the given manager, price is only used for items new to the store
+   public static boolean placeProductSupplyRequests(Retail esql, String mId, String storeId, String productName,
+                                                    String quantity, String warehouseId, String price) throws Exception {
+         esql.operation = "placeProductSupplyRequests";
+         List<List<List<String>>> checks = checkProductSupplyRequest(esql, mId, storeId, productName, warehouseId);
+         if (!supplyRequestAllowed(checks))
+            return false;
+         if (checks.get(1).isEmpty() && (price == null || price.trim().isEmpty()))
+            throw new IllegalArgumentException("Missing argument: price");
+
+         return submitProductSupplyRequest(esql, mId, storeId, productName, quantity, warehouseId, price, checks.get(1));
+   }
+
+   //run the store, product and warehouse checks of a supply request at once
+   public static List<List<List<String>>> checkProductSupplyRequest(Retail esql, String mId, String storeId,
+                                                                    String productName, String warehouseId) throws Exception {
          String checkStore = String.format("SELECT storeId " +
                                           "FROM STORE " +
                                           "WHERE storeID = '%s' AND managerID = '%s'"
                                           , storeId, mId);
 
-         List<List<String>> storeResults = esql.executeQueryAndReturnResult(checkStore);
-
-         if (storeResults.isEmpty()) {
-            System.out.println("You do not manage this store.");
-            return;
-         }
-
-         String productName = getInput("Enter Product Name");
-
          String checkProduct = String.format("SELECT * " +
                                              "FROM PRODUCT " +
                                              "WHERE storeId = '%s' AND productName = '%s'"
                                              , storeId, productName);
 
-         List<List<String>> productResults = esql.executeQueryAndReturnResult(checkProduct);
-
-
-         String quantity = getInput("Enter quantity");
-         String warehouseId = getInput("Enter WarehouseId");
-
          String checkWarehouse = String.format("SELECT wareHouseID " +
                                              "FROM WAREHOUSE " +
                                              "WHERE wareHouseId = '%s'"
                                              , warehouseId);
 
-         List<List<String>> warehouseResults = esql.executeQueryAndReturnResult(checkWarehouse);
+         // every database holds the warehouses, the shard of the store answers all three
+         return esql.on(storeId).executeQueriesAndReturnResults(checkStore, checkProduct, checkWarehouse);
+   }
 
-         if (warehouseResults.isEmpty()) {
+   //report a failed supply request check, returns false if the request must not be placed
+   private static boolean supplyRequestAllowed(List<List<List<String>>> checks) {
+         if (checks.get(0).isEmpty()) {
+            System.out.println("You do not manage this store.");
+            return false;
+         }
+         if (checks.get(2).isEmpty()) {
             System.out.println("This warehouse does not exist.");
-            return;
+            return false;
          }
+         return true;
+   }
 
-         String mutateProductTable = "";
+   //record a checked supply request, productResults is the current Product row if any.
+   //the units reach the store when the request's shipment wave completes, see FulfillmentScheduler
+   public static boolean submitProductSupplyRequest(Retail esql, String mId, String storeId, String productName,
+                                                    String quantity, String warehouseId, String price,
+                                                    List<List<String>> productResults) throws Exception {
+         if (productResults.isEmpty() && !validPrice(price)) {
+            System.out.println("Error: price must be a non-negative number");
+            return false;
+         }
+         Retail store = esql.on(storeId);
+         UnitOfWork request = new UnitOfWork();
          if (productResults.isEmpty()) {
-            String price = getInput("Enter per-unit price for new Item");
-            mutateProductTable = String.format("INSERT INTO PRODUCT (storeID, productName, numberOfUnits, pricePerUnit) VALUES ('%s', '%s', '%s', '%s')", storeId, productName, quantity, price);
+            // requests refer to the store's Product row, a new item starts out of stock
+            String mutateProductTable = String.format("INSERT INTO PRODUCT (storeID, productName, numberOfUnits, pricePerUnit) VALUES ('%s', '%s', 0, '%s')", storeId, productName, price);
+            request.add(mutateProductTable);
+         }
+
+         long requestNumber = esql.nextId(IdAllocator.PRODUCT_SUPPLY_REQUESTS);
+         String mutatePRTable = String.format("INSERT INTO PRODUCTSUPPLYREQUESTS (requestNumber, managerID, warehouseID, storeID, productName, unitsRequested, status) VALUES (%d, '%s', '%s', '%s', '%s', '%s', 'pending')", requestNumber, mId, warehouseId, storeId, productName, quantity);
+
+         request.add(mutatePRTable);
+         store.execute(request);
+         System.out.println(String.format("Supply request %d placed, the units arrive with its shipment wave", requestNumber));
+         return true;
+   }
+
+   //true if the price of a new item is a number the Product table takes
+   private static boolean validPrice(String price) {
+         if (price == null) return false;
+         try {
+            double value = Double.parseDouble(price.trim());
+            return value >= 0 && !Double.isInfinite(value);
+         } catch (NumberFormatException e) {
+            return false;
          }
-         else {
-            int newQuantity = Integer.parseInt(productResults.get(0).get(2)) + Integer.parseInt(quantity);
-            mutateProductTable = String.format("UPDATE PRODUCT SET numberOfUnits = '%s' WHERE storeID = '%s' AND productName = '%s'", String.valueOf(newQuantity), storeId, productName);
+   }
+
+   //plan and complete shipment waves of supply requests, admins only
+   public static void manageShipmentWaves(Retail esql) {
+      if (esql.access_level != ACCESS_LEVEL.ADMIN) { System.out.println("Error: FORBIDDEN"); return; }
+
+      Connection connection = null;
+      try {
+         esql.operation = "manageShipmentWaves";
+         connection = esql.newConnection();
+         FulfillmentScheduler scheduler = new FulfillmentScheduler(connection, Integer.getInteger("retail.waveMaxLines", 500));
+
+         System.out.println("1. Plan waves for pending requests");
+         System.out.println("2. View planned waves");
+         System.out.println("3. Complete a wave");
+         System.out.println("4. Complete all planned waves");
+         System.out.println("9. exit");
+         List<List<String>> waves, waiting = null;
+         switch (readChoice()) {
+            case 1:
+               waves = scheduler.planWaves();
+               waiting = scheduler.waitingRequests();
+               break;
+            case 2:
+               waves = scheduler.openWaves();
+               break;
+            case 3:
+               String waveId = getInput("Enter WaveId");
+               waves = scheduler.completeWaves(Arrays.asList(Integer.valueOf(waveId.trim())));
+               break;
+            case 4:
+               waves = scheduler.completeWaves(null);
+               break;
+            default:
+               return;
          }
+         esql.printResult(FulfillmentScheduler.WAVE_COLUMNS, waves);
+         System.out.println(String.format("[%s Waves]", waves.size()));
+         if (waiting != null) FulfillmentScheduler.printWaiting(esql, waiting);
+      } catch(NumberFormatException e){
+         System.out.println("Error: wave ID must be a number");
+      } catch(Exception e){
+         System.err.println (e.getMessage());
+      } finally {
+         try {
+            if (connection != null) connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }
 
-         int mutateProductResults = esql.executeQueryAndPrintResult(mutateProductTable);
+   //write orders, the product catalog or supply requests to a file, managers and admins only
+   public static void exportData(Retail esql) {
+      if (esql.access_level.val < ACCESS_LEVEL.MANAGER.val) { System.out.println("Error: FORBIDDEN"); return; }
+
+      Connection connection = null;
+      try {
+         esql.operation = "exportData";
+         System.out.println("1. Orders of a store");
+         System.out.println("2. Orders of all stores of a manager");
+         System.out.println("3. Product catalog");
+         System.out.println("4. Supply requests (admins only)");
+         System.out.println("9. exit");
+         DataExport.Dataset dataset;
+         String id = null;
+         switch (readChoice()) {
+            case 1:
+               dataset = DataExport.Dataset.STORE_ORDERS;
+               id = getInput("Enter StoreId").trim();
+               if (esql.access_level == ACCESS_LEVEL.MANAGER &&
+                   esql.on(id).executeQuery(String.format("SELECT storeID FROM Store WHERE storeID = %d AND managerID = %s",
+                                                   Integer.parseInt(id), esql.userId)) == 0) {
+                  System.out.println("Error: you do not manage store " + id);
+                  return;
+               }
+               break;
+            case 2:
+               dataset = DataExport.Dataset.MANAGER_ORDERS;
+               id = esql.access_level == ACCESS_LEVEL.ADMIN ? getInput("Enter ManagerId") : esql.userId;
+               break;
+            case 3:
+               dataset = DataExport.Dataset.PRODUCTS;
+               break;
+            case 4:
+               if (esql.access_level != ACCESS_LEVEL.ADMIN) { System.out.println("Error: FORBIDDEN"); return; }
+               dataset = DataExport.Dataset.SUPPLY_REQUESTS;
+               break;
+            default:
+               return;
+         }
+         // only the orders of a store are on one database, the other exports would miss the shards' rows
+         if (esql.sharded() && !dataset.oneStore()) {
+            System.out.println("Error: " + ShardMap.get().oneDatabase("the " + dataset.label + " export"));
+            return;
+         }
+         String file = getInput("Enter File Name (.csv or .rcol for columnar, .gz appended compresses)").trim();
+         DataExport.Format format = file.endsWith(".rcol") || file.endsWith(".rcol.gz")
+            ? DataExport.Format.COLUMNAR : DataExport.Format.CSV;
+
+         // the orders of a store are on its shard
+         connection = (dataset.oneStore() ? esql.on(id) : esql).newConnection();
+         long rows = new DataExport(connection).export(dataset.query(id), file, format, file.endsWith(".gz"));
+         System.out.println(String.format("[%s Rows written to %s]", rows, file));
+      } catch(NumberFormatException e){
+         System.out.println("Error: ID must be a number");
+      } catch(Exception e){
+         System.err.println (e.getMessage());
+      } finally {
+         try {
+            if (connection != null) connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }
 
-         String mutatePRTable = String.format("INSERT INTO PRODUCTSUPPLYREQUESTS (managerID, warehouseID, storeID, productName, unitsRequested) VALUES ('%s', '%s', '%s', '%s', '%s')", mId, warehouseId, storeId, productName, quantity);
+   //print the sales of the last 5 minutes, hour and day of a manager's stores
+   public static void viewLiveSales(Retail esql) {
+      String mId = "";
 
-         int mutatePRResults = esql.executeQueryAndPrintResult(mutatePRTable);
+      switch (esql.access_level) {
+         case MANAGER:
+            mId = esql.userId;
+            break;
+         case ADMIN:
+            mId = getInput("Enter ManagerId");
+            break;
+         default:
+            System.out.println("Error: FORBIDDEN");
+            return;
+      }
 
+      int ResponseLength = 0;
+      try {
+         ResponseLength = viewLiveSales(esql, mId);
       } catch(Exception e){
          System.err.println (e.getMessage());
       }
+      System.out.println(String.format("[%s Results]", ResponseLength));
+   }
+
+   //print the sales of the given manager's stores and their 5 best products of the last hour,
+   //read from the in-process sales window, returns the number of stores listed
+   public static int viewLiveSales(Retail esql, String mId) throws Exception {
+      esql.operation = "viewLiveSales";
+      List<String> storeIds = new ArrayList<String>();
+      Catalog catalog = Catalog.get();
+      // the catalog holds the stores of the home database only
+      if (catalog.isLive() && !esql.sharded()) {
+         for (List<String> store : catalog.stores())
+            if (store.get(4).trim().equals(mId.trim())) storeIds.add(store.get(0).trim());
+         Collections.sort(storeIds, new Comparator<String>() {
+            public int compare(String a, String b) {
+               return Long.compare(Long.parseLong(a), Long.parseLong(b));
+            }
+         });
+      } else {
+         for (List<String> store : esql.gather(String.format("SELECT storeID FROM Store WHERE managerID = '%s' ORDER BY storeID", mId), null))
+            storeIds.add(store.get(0).trim());
+      }
+
+      // add the orders other sessions placed since the last view
+      SalesWindow sales = SalesWindow.get();
+      sales.sync(esql);
+      System.out.println("***** Sales per Store *****");
+      int storeCount = esql.printResult(SalesWindow.COLUMNS, sales.storeRows(storeIds));
+      System.out.println("");
+      System.out.println("***** Top 5 Products, Last Hour *****");
+      esql.printResult(SalesWindow.COLUMNS, sales.topProducts(storeIds, SalesWindow.Window.HOUR, 5));
+      System.out.println("");
+      return storeCount;
    }
 
 }//end Retail
@@ -0,0 +1,287 @@
+/*
+ * Sales Window
+ * ============
+ *
+ * Units sold and revenue per store and product over the last five
+ * minutes, hour and day, kept in memory as orders are placed.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps, for every store and every product of a store, one ring
+ * of time buckets per window. A sale is added to the bucket of its time and
+ * to the window's running total; when the ring turns, the buckets falling
+ * out of the window are subtracted from the total. Reading a total is
+ * therefore O(1).
+ *
+ * The window is filled by sync(), which the live sales view calls before
+ * reading it: the first call reads the orders of the last day, later ones
+ * only the orders placed since the previous call, by any session, over a
+ * range scan of the index on Orders.orderTime of create_indexes.sql. Order
+ * times are taken before an order commits, so every read goes back
+ * retail.salesWindowSlackMillis (10000) further and skips the orders it
+ * already added by their orderNumber; an order committed later than that
+ * after its orderTime is missed. Orders read are priced at the current
+ * Product.pricePerUnit, those this process places at their price when
+ * ordered. A process that never shows live sales reads no orders.
+ *
+ */
+public class SalesWindow {
+
+   // the windows, each a ring of buckets of the given length
+   public enum Window {
+      FIVE_MINUTES("5m", 10 * 1000L, 30),
+      HOUR("1h", 60 * 1000L, 60),
+      DAY("1d", 15 * 60 * 1000L, 96);
+
+      public final String label;
+      public final long bucketMillis;
+      public final int buckets;
+
+      private Window(String _label, long _bucketMillis, int _buckets) {
+         this.label = _label;
+         this.bucketMillis = _bucketMillis;
+         this.buckets = _buckets;
+      }
+   }
+
+   // the columns of storeRows() and topProducts()
+   public static final List<String> COLUMNS = Arrays.asList(
+      "storeid", "productname", "units_5m", "revenue_5m", "units_1h", "revenue_1h", "units_1d", "revenue_1d");
+
+   /**
+    * The sales of one window, in buckets of the ring and in total.
+    */
+   static final class Ring {
+      final Window window;
+      final long[] units;
+      final double[] revenue;
+      long unitsTotal = 0;
+      double revenueTotal = 0;
+      long head = Long.MIN_VALUE; // the newest bucket, counted from the epoch
+
+      Ring(Window window) {
+         this.window = window;
+         this.units = new long[window.buckets];
+         this.revenue = new double[window.buckets];
+      }
+
+      // turns the ring to the given bucket, emptying the buckets it passes
+      void advance(long bucket) {
+         if (head == Long.MIN_VALUE || bucket - head >= units.length) {
+            Arrays.fill(units, 0);
+            Arrays.fill(revenue, 0);
+            unitsTotal = 0;
+            revenueTotal = 0;
+            head = bucket;
+            return;
+         }
+         while (head < bucket) {
+            head++;
+            int i = (int) (head % units.length);
+            unitsTotal -= units[i];
+            revenueTotal -= revenue[i];
+            units[i] = 0;
+            revenue[i] = 0;
+         }
+      }
+
+      void add(long at, long soldUnits, double soldRevenue) {
+         long bucket = at / window.bucketMillis;
+         if (bucket > head) advance(bucket);
+         if (bucket <= head - units.length) return; // older than the window
+         int i = (int) (bucket % units.length);
+         units[i] += soldUnits;
+         revenue[i] += soldRevenue;
+         unitsTotal += soldUnits;
+         revenueTotal += soldRevenue;
+      }
+   }
+
+   /**
+    * The rings of all windows of a store or product.
+    */
+   static final class Counter {
+      final Ring[] rings = new Ring[Window.values().length];
+
+      Counter() {
+         for (Window w : Window.values())
+            rings[w.ordinal()] = new Ring(w);
+      }
+
+      void add(long at, long units, double revenue) {
+         for (Ring ring : rings)
+            ring.add(at, units, revenue);
+      }
+
+      // the units and revenue of every window as of now
+      List<String> totals(long now) {
+         List<String> row = new ArrayList<String>();
+         for (Ring ring : rings) {
+            ring.advance(now / ring.window.bucketMillis);
+            row.add(Long.toString(ring.unitsTotal));
+            row.add(String.format("%.2f", Math.max(0, ring.revenueTotal)));
+         }
+         return row;
+      }
+   }
+
+   static final long SLACK_MILLIS = Long.getLong("retail.salesWindowSlackMillis", 10000);
+   static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+   private static final SalesWindow instance = new SalesWindow();
+
+   /**
+    * @return the process wide sales window
+    */
+   public static SalesWindow get() {
+      return instance;
+   }
+
+   // per storeID, and per productName of each storeID
+   private final Map<String, Counter> stores = new HashMap<String, Counter>();
+   private final Map<String, Map<String, Counter>> products = new HashMap<String, Map<String, Counter>>();
+
+   // orderNumber and order time of the orders added that the next sync may read again
+   private final Map<Long, Long> added = new HashMap<Long, Long>();
+
+   // one sync at a time
+   private final Object syncLock = new Object();
+   // the time of the last sync, 0 before the first
+   private volatile long syncedAt = 0;
+   // when record() last dropped orderNumbers
+   private long forgotAt = 0;
+
+   /**
+    * Adds a sale this process placed. Before the first sync it is left to
+    * that sync to read.
+    *
+    * @param at the order time, in milliseconds since the epoch
+    */
+   public synchronized void record(long orderNumber, String storeId, String productName, long units, double pricePerUnit, long at) {
+      long synced = syncedAt;
+      if (synced == 0) return;
+      add(orderNumber, storeId, productName, units, pricePerUnit, at);
+      // without views the orders placed meanwhile are kept until the next sync, a day at most
+      if (at - forgotAt > 60 * 1000L) {
+         forget(Math.max(at - DAY_MILLIS, synced - SLACK_MILLIS));
+         forgotAt = at;
+      }
+   }
+
+   // adds a sale unless it is older than a day or was added before
+   private synchronized void add(long orderNumber, String storeId, String productName, long units, double pricePerUnit, long at) {
+      if (at <= System.currentTimeMillis() - DAY_MILLIS) return;
+      if (added.put(orderNumber, at) != null) return;
+      String store = storeId.trim(), product = productName.trim();
+      Counter counter = stores.get(store);
+      if (counter == null) {
+         counter = new Counter();
+         stores.put(store, counter);
+      }
+      counter.add(at, units, units * pricePerUnit);
+
+      Map<String, Counter> storeProducts = products.get(store);
+      if (storeProducts == null) {
+         storeProducts = new HashMap<String, Counter>();
+         products.put(store, storeProducts);
+      }
+      counter = storeProducts.get(product);
+      if (counter == null) {
+         counter = new Counter();
+         storeProducts.put(product, counter);
+      }
+      counter.add(at, units, units * pricePerUnit);
+   }
+
+   /**
+    * Adds the orders of every shard placed since the last sync, or during
+    * the last day at the first.
+    *
+    * @return the number of orders read
+    * @throws java.sql.SQLException when the orders cannot be read
+    */
+   public int sync(Retail esql) throws SQLException {
+      synchronized (syncLock) {
+         long now = System.currentTimeMillis();
+         long since = Math.max(now - DAY_MILLIS, syncedAt - SLACK_MILLIS);
+         List<List<String>> rows = esql.gather(String.format(
+            "SELECT O.orderNumber, O.storeID, O.productName, O.unitsOrdered, O.orderTime, P.pricePerUnit " +
+            "FROM Orders O, Product P " +
+            "WHERE O.orderTime > '%s' " +
+            "AND P.storeID = O.storeID AND P.productName = O.productName", new Timestamp(since)), null);
+         for (List<String> row : rows)
+            add(Long.parseLong(row.get(0).trim()), row.get(1), row.get(2), Long.parseLong(row.get(3).trim()),
+                   Double.parseDouble(row.get(5).trim()), Timestamp.valueOf(row.get(4).trim()).getTime());
+         syncedAt = now;
+         forget(now - SLACK_MILLIS);
+         return rows.size();
+      }
+   }
+
+   // drops the orderNumbers of the orders older than the next sync reads
+   private synchronized void forget(long before) {
+      Iterator<Map.Entry<Long, Long>> i = added.entrySet().iterator();
+      while (i.hasNext())
+         if (i.next().getValue() <= before) i.remove();
+   }
+
+   /**
+    * @param storeIds the stores to report
+    * @return a row per store, with an empty productname, in the order given,
+    *         with the columns of COLUMNS
+    */
+   public synchronized List<List<String>> storeRows(List<String> storeIds) {
+      long now = System.currentTimeMillis();
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (String storeId : storeIds) {
+         Counter counter = stores.get(storeId.trim());
+         List<String> row = new ArrayList<String>(Arrays.asList(storeId.trim(), ""));
+         row.addAll(counter == null ? new Counter().totals(now) : counter.totals(now));
+         rows.add(row);
+      }
+      return rows;
+   }
+
+   /**
+    * @param storeIds the stores whose products to rank
+    * @param window the window to rank by revenue in
+    * @param limit the most rows returned
+    * @return the best selling products of the stores, with the columns of COLUMNS
+    */
+   public synchronized List<List<String>> topProducts(List<String> storeIds, Window window, int limit) {
+      long now = System.currentTimeMillis();
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (String storeId : storeIds) {
+         Map<String, Counter> storeProducts = products.get(storeId.trim());
+         if (storeProducts == null) continue;
+         for (Map.Entry<String, Counter> product : storeProducts.entrySet()) {
+            List<String> row = new ArrayList<String>(Arrays.asList(storeId.trim(), product.getKey()));
+            row.addAll(product.getValue().totals(now));
+            if (!row.get(2 + 2 * window.ordinal()).equals("0")) rows.add(row);
+         }
+      }
+      final int column = 3 + 2 * window.ordinal();
+      Collections.sort(rows, new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            return Double.compare(Double.parseDouble(b.get(column)), Double.parseDouble(a.get(column)));
+         }
+      });
+      return rows.size() > limit ? new ArrayList<List<String>>(rows.subList(0, limit)) : rows;
+   }
+
+}//end SalesWindow
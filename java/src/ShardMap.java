@@ -0,0 +1,306 @@
+/*
+ * Shard Map
+ * =========
+ *
+ * Tells which PostgreSQL instance holds the rows of a store, for running
+ * the Retail program over several databases.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * This class reads the properties file named by -Dretail.shardMap, with
+ * one line per shard
+ *
+ *   shard.<name> = [host:]<port>/<dbname> <storeIDs>
+ *
+ * where storeIDs is a comma separated list of IDs and ranges, for example
+ *
+ *   shard.east = 5433/retail_DB 1-500
+ *   shard.west = otherhost:5432/retail_DB 501-1000,1200
+ *
+ * The rows of Store, Product, ProductStripes, Orders, ProductUpdates and
+ * ProductSupplyRequests live on the shard owning their storeID; stores no
+ * shard owns stay on the home database, the one Retail is started with.
+ * Users and Warehouse are reference tables copied to every database, so
+ * the joins of the Retail queries work on each of them; Retail writes users
+ * to all databases. Keys of new rows come from the home database's
+ * sequences and are unique over all shards.
+ *
+ * WarehouseStock is split, not copied: each database holds an equal share
+ * of every warehouse's units, home also the remainder, and plans shipment
+ * waves for its own stores' requests against that share only. The shares
+ * add up to the warehouse's units, so no unit is reserved by two databases.
+ * A request its database's share cannot cover waits for stock received
+ * there, FulfillmentScheduler receive against that database.
+ *
+ * Without retail.shardMap there are no shards and everything runs on the
+ * home database as before. To set up the shards, create and load every
+ * database with create_db.sh, then run "prune" against each, home included,
+ * to drop the stores it does not own and split the warehouse stock.
+ *
+ * Shipment waves work on one database at a time; run them against each
+ * shard. Feed syncs apply a file to every database. Exports of one store
+ * read its shard; the other exports refuse to run without --shard naming
+ * the database to export. The live inventory feed keeps the catalog
+ * of the home database only, so the views over all stores, stores within
+ * 30 miles, product search and live sales, query the shards instead of it
+ * when there are shards. The catchment report reads the stores of every
+ * shard.
+ *
+ */
+public class ShardMap {
+
+   private static ShardMap instance = null;
+
+   /**
+    * @return the shard map of -Dretail.shardMap, empty if unset
+    */
+   public static synchronized ShardMap get() {
+      if (instance == null) {
+         String file = System.getProperty("retail.shardMap");
+         try {
+            instance = file == null ? new ShardMap(new Properties()) : load(file);
+         } catch (IOException e) {
+            throw new IllegalStateException("Cannot read shard map " + file + ": " + e.getMessage());
+         }
+      }
+      return instance;
+   }
+
+   static ShardMap load(String file) throws IOException {
+      Properties properties = new Properties();
+      InputStream in = new FileInputStream(file);
+      try {
+         properties.load(in);
+      } finally {
+         in.close();
+      }
+      return new ShardMap(properties);
+   }
+
+   // JDBC URL and owned storeID ranges, as {first, last} pairs, of every shard
+   private final Map<String, String> urls = new LinkedHashMap<String, String>();
+   private final Map<String, List<long[]>> ranges = new LinkedHashMap<String, List<long[]>>();
+
+   ShardMap(Properties properties) {
+      List<String> keys = new ArrayList<String>(properties.stringPropertyNames());
+      Collections.sort(keys);
+      for (String key : keys) {
+         if (!key.startsWith("shard.")) continue;
+         String name = key.substring(6);
+         String[] spec = properties.getProperty(key).trim().split("\\s+");
+         if (spec.length != 2)
+            throw new IllegalArgumentException("Expected [host:]<port>/<dbname> <storeIDs> for " + key);
+         String location = spec[0];
+         boolean hasHost = location.indexOf(':') >= 0 && location.indexOf(':') < location.indexOf('/');
+         urls.put(name, "jdbc:postgresql://" + (hasHost ? location : "localhost:" + location));
+         List<long[]> owned = new ArrayList<long[]>();
+         for (String part : spec[1].split(",")) {
+            int dash = part.indexOf('-', 1);
+            long first = Long.parseLong(dash < 0 ? part.trim() : part.substring(0, dash).trim());
+            long last = dash < 0 ? first : Long.parseLong(part.substring(dash + 1).trim());
+            owned.add(new long[] {first, last});
+         }
+         ranges.put(name, owned);
+      }
+   }
+
+   /**
+    * @return true if there are no shards
+    */
+   public boolean isEmpty() {
+      return urls.isEmpty();
+   }
+
+   /**
+    * @return the names of the shards, home not included
+    */
+   public List<String> names() {
+      return new ArrayList<String>(urls.keySet());
+   }
+
+   /**
+    * @return the JDBC URL of a shard
+    */
+   public String url(String name) {
+      return urls.get(name);
+   }
+
+   /**
+    * @param storeId a storeID, as typed by the user
+    * @return the shard owning the store, or null if the home database does
+    */
+   public String shardOf(String storeId) {
+      long id;
+      try {
+         id = Long.parseLong(storeId.trim());
+      } catch (NumberFormatException e) {
+         return null; // not a store anywhere, home reports that
+      }
+      for (Map.Entry<String, List<long[]>> shard : ranges.entrySet())
+         for (long[] range : shard.getValue())
+            if (id >= range[0] && id <= range[1]) return shard.getKey();
+      return null;
+   }
+
+   /**
+    * @param what the work that reads or writes one database
+    * @return the message refusing it without a database named
+    */
+   String oneDatabase(String what) {
+      return String.format("With shards %s covers one database: run DataExport with --shard=home and --shard=<name> for each of %s",
+         what, names());
+   }
+
+   /**
+    * @param name a shard, or null for the home database
+    * @return an SQL condition on storeID true for the stores the database owns
+    */
+   String owns(String name) {
+      if (name != null) return condition(ranges.get(name));
+      List<long[]> all = new ArrayList<long[]>();
+      for (List<long[]> owned : ranges.values()) all.addAll(owned);
+      return all.isEmpty() ? "TRUE" : "NOT " + condition(all);
+   }
+
+   private static String condition(List<long[]> owned) {
+      StringBuilder sql = new StringBuilder("(");
+      for (int i = 0; i < owned.size(); i++)
+         sql.append(i == 0 ? "" : " OR ").append(String.format("storeID BETWEEN %d AND %d", owned.get(i)[0], owned.get(i)[1]));
+      return sql.append(')').toString();
+   }
+
+   /**
+    * Deletes the rows of the stores a database does not own, after it was
+    * loaded with the data of all stores.
+    *
+    * @param name the shard the database is, or null for home
+    * @throws java.sql.SQLException when a delete failed, nothing was deleted then
+    */
+   void prune(Connection connection, String name) throws SQLException {
+      String foreign = "NOT " + owns(name);
+      connection.setAutoCommit(false);
+      try {
+         // the stock is split the first time only, while the foreign stores are still there
+         if (!Jdbc.query(connection, "SELECT 1 FROM Store WHERE " + foreign + " LIMIT 1").isEmpty())
+            Jdbc.execute(connection, stockShare(name));
+         for (String table : new String[] {"Orders", "ProductUpdates", "ProductSupplyRequests", "Product", "Store"})
+            Jdbc.execute(connection, "DELETE FROM " + table + " WHERE " + foreign);
+         connection.commit();
+      } catch (SQLException e) {
+         connection.rollback();
+         throw e;
+      } finally {
+         connection.setAutoCommit(true);
+      }
+   }
+
+   /**
+    * @param name a shard, or null for the home database
+    * @return an update leaving the database its share of the warehouse stock:
+    *         an equal part of every row, home also keeping the remainder
+    */
+   String stockShare(String name) {
+      int databases = urls.size() + 1;
+      return String.format("UPDATE WarehouseStock SET unitsOnHand = unitsOnHand / %d%s",
+         databases, name == null ? String.format(" + unitsOnHand %% %d", databases) : "");
+   }
+
+   /**
+    * Merges the rows of several shards, newest first.
+    *
+    * @param column the column of a timestamp or number to order by
+    * @param limit the most rows returned, or 0 for all
+    */
+   static List<List<String>> newest(List<List<String>> rows, final int column, int limit) {
+      Collections.sort(rows, new Comparator<List<String>>() {
+         public int compare(List<String> a, List<String> b) {
+            return b.get(column).trim().compareTo(a.get(column).trim());
+         }
+      });
+      return limit > 0 && rows.size() > limit ? new ArrayList<List<String>>(rows.subList(0, limit)) : rows;
+   }
+
+   /**
+    * Merges per-shard totals: adds up the second column of the rows with
+    * the same first column and orders the keys by their total, biggest first.
+    *
+    * @param limit the most keys returned
+    * @return the keys, one per row
+    */
+   static List<List<String>> largest(List<List<String>> rows, int limit) {
+      final Map<String, Double> totals = new HashMap<String, Double>();
+      for (List<String> row : rows) {
+         Double total = totals.get(row.get(0));
+         double value = row.get(1) == null ? 0 : Double.parseDouble(row.get(1).trim());
+         totals.put(row.get(0), total == null ? value : total + value);
+      }
+      List<String> keys = new ArrayList<String>(totals.keySet());
+      Collections.sort(keys, new Comparator<String>() {
+         public int compare(String a, String b) {
+            return Double.compare(totals.get(b), totals.get(a));
+         }
+      });
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (String key : keys.subList(0, Math.min(limit, keys.size())))
+         result.add(Collections.singletonList(key));
+      return result;
+   }
+
+   /**
+    * Prunes a database loaded with all stores to the stores it owns.
+    *
+    * @param args <dbname> <port> <user> prune <shard>|home
+    */
+   public static void main(String[] args) {
+      if (args.length != 5 || !args[3].equals("prune")) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] -Dretail.shardMap=<file> " +
+            ShardMap.class.getName () +
+            " <dbname> <port> <user> prune <shard>|home");
+         return;
+      }//end if
+
+      Connection connection = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         ShardMap map = get();
+         String name = args[4].equals("home") ? null : args[4];
+         if (name != null && map.url(name) == null)
+            throw new IllegalArgumentException("Unknown shard: " + name);
+         connection = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+         map.prune(connection, name);
+         System.out.println(Jdbc.query(connection, "SELECT COUNT(*) FROM Store").get(0).get(0).trim() +
+            " stores left on " + args[4]);
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+      } finally {
+         try {
+            if (connection != null) connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+      }
+   }//end main
+
+}//end ShardMap
@@ -0,0 +1,278 @@
+/*
+ * Slow Query Log
+ * ==============
+ *
+ * Records statements that exceed a configurable threshold together with the
+ * operation that issued them, their literal values and their query plan.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is shared by all Retail sessions of a process. The Retail
+ * query helpers report every statement with its elapsed time; statements
+ * over the threshold are appended to a local log file that is rotated by
+ * size. The plan of every distinct statement shape is captured once with
+ * EXPLAIN so later entries can refer to it. EXPLAIN only plans the
+ * statement; with retail.slowQueryAnalyze the plan is captured with
+ * EXPLAIN (ANALYZE, BUFFERS) instead, which runs the slow statement once
+ * more on the caller's connection, data changes rolled back.
+ *
+ * Configured through system properties:
+ *   retail.slowQueryMillis   threshold in milliseconds, negative disables (default 200)
+ *   retail.slowQueryLog      log file (default slow_queries.log)
+ *   retail.slowQueryLogBytes size at which the log is rotated (default 10 MB)
+ *   retail.slowQueryLogFiles number of rotated files kept (default 5)
+ *   retail.slowQueryAnalyze  capture plans with actual times and buffers (default false)
+ *
+ */
+public class SlowQueryLog {
+
+   // run the statements whose plan is captured, see the class comment
+   static final boolean ANALYZE = Boolean.getBoolean("retail.slowQueryAnalyze");
+
+   private static SlowQueryLog instance = null;
+
+   /**
+    * @return the process wide slow query log
+    */
+   public static synchronized SlowQueryLog get() {
+      if (instance == null) {
+         instance = new SlowQueryLog(
+            Long.getLong("retail.slowQueryMillis", 200),
+            new File(System.getProperty("retail.slowQueryLog", "slow_queries.log")),
+            Long.getLong("retail.slowQueryLogBytes", 10L * 1024 * 1024),
+            Integer.getInteger("retail.slowQueryLogFiles", 5));
+      }
+      return instance;
+   }
+
+   private final long thresholdNanos;
+   private final File file;
+   private final long maxBytes;
+   private final int maxFiles;
+
+   // plan id of every statement shape whose plan was captured
+   private final Map<String, String> plans = new ConcurrentHashMap<String, String>();
+
+   private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+   private OutputStream out = null;
+   private long written = 0;
+
+   public SlowQueryLog(long thresholdMillis, File file, long maxBytes, int maxFiles) {
+      this.thresholdNanos = thresholdMillis < 0 ? Long.MAX_VALUE : thresholdMillis * 1000000L;
+      this.file = file;
+      this.maxBytes = maxBytes;
+      this.maxFiles = Math.max(1, maxFiles);
+   }
+
+   /**
+    * @param nanos the elapsed time of a statement
+    * @return true if a statement that took this long is logged
+    */
+   public boolean isSlow(long nanos) {
+      return nanos >= thresholdNanos;
+   }
+
+   /**
+    * Logs the statement if it took longer than the threshold. The plan is
+    * captured on the given connection the first time a statement shape is
+    * seen; with ANALYZE that runs the statement once more.
+    *
+    * @param connection the connection that ran the statement
+    * @param operation the Retail operation that issued the statement
+    * @param sql the statement as sent to the database
+    * @param nanos the elapsed time of the statement
+    */
+   public void record(Connection connection, String operation, String sql, long nanos) {
+      if (!isSlow(nanos)) return;
+
+      List<String> binds = new ArrayList<String>();
+      String shape = fingerprint(sql, binds);
+
+      String planId = plans.get(shape);
+      String plan = null;
+      if (planId == null) {
+         planId = String.format("%08x", shape.hashCode());
+         if (plans.putIfAbsent(shape, planId) == null)
+            plan = explain(connection, sql);
+      }
+
+      StringBuilder entry = new StringBuilder();
+      synchronized (this) {
+         entry.append(timeFormat.format(new Date()));
+      }
+      entry.append(String.format(" operation=%s time=%.1fms plan=#%s%n", operation, nanos / 1e6, planId));
+      entry.append("  sql: ").append(shape).append(System.lineSeparator());
+      entry.append("  binds: ").append(binds).append(System.lineSeparator());
+      if (plan != null) {
+         entry.append("  plan #").append(planId).append(':').append(System.lineSeparator());
+         entry.append(plan);
+      }
+      append(entry.toString());
+   }
+
+   /**
+    * Logs the statements of a transaction run as one JDBC batch if together
+    * they took longer than the threshold. Each statement is logged with its
+    * own shape and literals; no plan is captured, explaining the statements
+    * one by one outside their transaction would not show what ran.
+    *
+    * @param operation the Retail operation that issued the statements
+    * @param statements the statements, in the order run
+    * @param nanos the elapsed time of the whole transaction
+    */
+   public void recordBatch(String operation, List<String> statements, long nanos) {
+      if (!isSlow(nanos)) return;
+
+      StringBuilder entry = new StringBuilder();
+      synchronized (this) {
+         entry.append(timeFormat.format(new Date()));
+      }
+      entry.append(String.format(" operation=%s time=%.1fms batch=%d statements%n", operation, nanos / 1e6, statements.size()));
+      for (String sql : statements) {
+         List<String> binds = new ArrayList<String>();
+         entry.append("  sql: ").append(fingerprint(sql, binds)).append(System.lineSeparator());
+         entry.append("  binds: ").append(binds).append(System.lineSeparator());
+      }
+      append(entry.toString());
+   }
+
+   /**
+    * Replaces the string and numeric literals of a statement with '?' so
+    * statements that only differ in their values share one shape.
+    *
+    * @param sql the statement
+    * @param binds receives the replaced literals in order
+    * @return the statement shape
+    */
+   static String fingerprint(String sql, List<String> binds) {
+      StringBuilder shape = new StringBuilder(sql.length());
+      int i = 0, n = sql.length();
+      while (i < n) {
+         char c = sql.charAt(i);
+         if (c == '\'') {
+            StringBuilder literal = new StringBuilder();
+            i++;
+            while (i < n) {
+               char d = sql.charAt(i);
+               if (d == '\'' && i + 1 < n && sql.charAt(i + 1) == '\'') { literal.append('\''); i += 2; continue; }
+               if (d == '\'') { i++; break; }
+               literal.append(d);
+               i++;
+            }
+            binds.add("'" + literal + "'");
+            shape.append('?');
+         } else if (Character.isDigit(c) && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+            int start = i;
+            while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) i++;
+            binds.add(sql.substring(start, i));
+            shape.append('?');
+         } else if (Character.isWhitespace(c)) {
+            while (i < n && Character.isWhitespace(sql.charAt(i))) i++;
+            shape.append(' ');
+         } else {
+            shape.append(c);
+            i++;
+         }
+      }
+      return shape.toString().trim();
+   }
+
+   static boolean isIdentifierPart(char c) {
+      return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+   }
+
+   // captures the plan of a statement, data changing statements are rolled back
+   String explain(Connection connection, String sql) {
+      String head = sql.trim().toUpperCase();
+      boolean query = head.startsWith("SELECT") || head.startsWith("WITH");
+      boolean dml = head.startsWith("INSERT") || head.startsWith("UPDATE") || head.startsWith("DELETE");
+      if (!query && !dml) return "    (no plan for this statement)" + System.lineSeparator();
+
+      try {
+         boolean autoCommit = connection.getAutoCommit();
+         // analyzing executes the statement, only do that on request and outside of the caller's transaction
+         boolean analyze = ANALYZE && autoCommit;
+         if (dml && analyze) connection.setAutoCommit(false);
+         try {
+            try {
+               return runExplain(connection, (analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + sql);
+            } catch (SQLException e) {
+               if (!analyze) throw e;
+               // servers before 9.0 only know the old syntax
+               if (dml) connection.rollback();
+               return runExplain(connection, "EXPLAIN ANALYZE " + sql);
+            }
+         } finally {
+            if (dml && analyze) {
+               connection.rollback();
+               connection.setAutoCommit(true);
+            }
+         }
+      } catch (SQLException e) {
+         return "    (plan unavailable: " + e.getMessage() + ")" + System.lineSeparator();
+      }
+   }
+
+   static String runExplain(Connection connection, String explain) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(explain);
+         StringBuilder plan = new StringBuilder();
+         while (rs.next())
+            plan.append("    ").append(rs.getString(1)).append(System.lineSeparator());
+         return plan.toString();
+      } finally {
+         stmt.close();
+      }
+   }
+
+   private synchronized void append(String entry) {
+      try {
+         if (out == null) {
+            written = file.exists() ? file.length() : 0;
+            out = new FileOutputStream(file, true);
+         }
+         // the limit is in bytes of the file, not characters of the entry
+         byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+         out.write(bytes);
+         out.flush();
+         written += bytes.length;
+         if (written >= maxBytes) rotate();
+      } catch (IOException e) {
+         System.err.println("Slow query log: " + e.getMessage());
+      }
+   }
+
+   // slow_queries.log becomes slow_queries.log.1, .1 becomes .2 and so on
+   private void rotate() throws IOException {
+      out.close();
+      out = null;
+      new File(file.getPath() + "." + maxFiles).delete();
+      for (int i = maxFiles - 1; i >= 1; i--) {
+         File older = new File(file.getPath() + "." + i);
+         if (older.exists()) older.renameTo(new File(file.getPath() + "." + (i + 1)));
+      }
+      file.renameTo(new File(file.getPath() + ".1"));
+   }
+
+}//end SlowQueryLog
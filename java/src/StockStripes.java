@@ -0,0 +1,303 @@
+/*
+ * Stock Stripes
+ * =============
+ *
+ * Splits the stock of hot products into stripes that orders take units
+ * from independently.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class works on the ProductStripes table of create_stripes.sql. An
+ * order for a striped product takes its units from a random stripe with one
+ * conditional UPDATE of that stripe's row, so concurrent buyers of the
+ * product mostly lock different rows. When the stripe runs dry it is
+ * refilled from the units left in the Product row, a share big enough to
+ * serve several orders; when those run out too, the units of all stripes
+ * are gathered back into the Product row first. Only refills lock the
+ * Product row, always before any stripe, so they cannot deadlock with each
+ * other.
+ *
+ * Which products are striped is read from each database every
+ * retail.stripeRefreshMillis (5000); orders for products striped or
+ * unstriped in the meantime still find their units.
+ *
+ */
+public class StockStripes {
+
+   // results of take
+   public static final int TAKEN = 1, SOLD_OUT = 0, NOT_STRIPED = -1;
+
+   private static final long REFRESH_NANOS = Long.getLong("retail.stripeRefreshMillis", 5000) * 1000000L;
+
+   // stripes per storeID|productName of the striped products, and when they were read, per database URL
+   private static final Map<String, Map<String, Integer>> striped = new HashMap<String, Map<String, Integer>>();
+   private static final Map<String, Long> loadedAt = new HashMap<String, Long>();
+
+   private static String key(String storeId, String productName) {
+      return storeId.trim() + "|" + productName.trim();
+   }
+
+   /**
+    * @return the number of stripes of a product, 0 if it is not striped
+    * @throws java.sql.SQLException when the striped products cannot be read
+    */
+   public static int stripes(Connection connection, String storeId, String productName) throws SQLException {
+      String database = connection.getMetaData().getURL();
+      Map<String, Integer> current;
+      synchronized (StockStripes.class) {
+         Long loaded = loadedAt.get(database);
+         if (loaded == null || System.nanoTime() - loaded.longValue() > REFRESH_NANOS) {
+            current = new HashMap<String, Integer>();
+            for (List<String> row : Jdbc.query(connection,
+                  "SELECT storeID, productName, COUNT(*) FROM ProductStripes GROUP BY storeID, productName"))
+               current.put(key(row.get(0), row.get(1)), Integer.valueOf(row.get(2).trim()));
+            striped.put(database, current);
+            loadedAt.put(database, System.nanoTime());
+         }
+         current = striped.get(database);
+      }
+      Integer n = current.get(key(storeId, productName));
+      return n == null ? 0 : n.intValue();
+   }
+
+   /**
+    * Takes units of a striped product for an order. Runs in the caller's
+    * transaction if autocommit is off, otherwise a refill commits on its own.
+    *
+    * @param stripes the number of stripes, as returned by stripes()
+    * @return TAKEN, SOLD_OUT if the product has fewer units left, or
+    *         NOT_STRIPED if the product has no stripes anymore
+    * @throws java.sql.SQLException when an update failed
+    */
+   public static int take(Connection connection, String storeId, String productName, int units, int stripes) throws SQLException {
+      int stripe = ThreadLocalRandom.current().nextInt(stripes);
+      String product = String.format("storeID = '%s' AND productName = '%s'", storeId, productName);
+      if (update(connection, String.format(
+            "UPDATE ProductStripes SET units = units - %d WHERE %s AND stripe = %d AND units >= %d",
+            units, product, stripe, units)) == 1)
+         return TAKEN;
+
+      // the stripe ran dry, refill it while holding the Product row
+      boolean own = connection.getAutoCommit();
+      if (own) connection.setAutoCommit(false);
+      try {
+         List<List<String>> row = Jdbc.query(connection,
+            "SELECT numberOfUnits FROM Product WHERE " + product + " FOR UPDATE");
+         if (row.isEmpty()) {
+            end(connection, own, false);
+            return SOLD_OUT;
+         }
+         long pool = Long.parseLong(row.get(0).get(0).trim());
+         long gathered = 0;
+         if (pool < units) {
+            // gather the units of all stripes, some may be left over in each
+            for (List<String> s : Jdbc.query(connection,
+                  "SELECT units FROM ProductStripes WHERE " + product + " AND units > 0 FOR UPDATE"))
+               gathered += Long.parseLong(s.get(0).trim());
+            if (gathered > 0) {
+               Jdbc.execute(connection, "UPDATE ProductStripes SET units = 0 WHERE " + product + " AND units > 0");
+               pool += gathered;
+            }
+         }
+         if (pool < units) {
+            if (gathered > 0) {
+               // keep the units gathered so the next order does not gather again
+               Jdbc.execute(connection,
+                  String.format("UPDATE Product SET numberOfUnits = %d WHERE %s", pool, product));
+            }
+            end(connection, own, true);
+            return SOLD_OUT;
+         }
+
+         // the last stripe if the product was striped again with fewer stripes meanwhile
+         long refill = Math.min(pool, Math.max(units, pool / stripes));
+         if (update(connection, String.format("UPDATE ProductStripes SET units = units + %d WHERE %s AND stripe = " +
+               "(SELECT MAX(stripe) FROM ProductStripes WHERE %s AND stripe <= %d)",
+               refill - units, product, product, stripe)) == 0) {
+            end(connection, own, false);
+            forget(connection);
+            return NOT_STRIPED;
+         }
+         Jdbc.execute(connection,
+            String.format("UPDATE Product SET numberOfUnits = %d WHERE %s", pool - refill, product));
+         end(connection, own, true);
+         return TAKEN;
+      } catch (SQLException e) {
+         end(connection, own, false);
+         throw e;
+      }
+   }
+
+   /**
+    * Takes units of a product for an order, from its stripes if it is
+    * striped, otherwise by decrementing its Product row if it holds enough
+    * units. When the row holds too few, the product may have been striped
+    * by another process since the striped products were read; they are
+    * read again before the product is reported sold out.
+    *
+    * @return TAKEN, or SOLD_OUT if the product has fewer units left
+    * @throws java.sql.SQLException when an update failed
+    */
+   public static int takeUnits(Connection connection, String storeId, String productName, int units) throws SQLException {
+      for (int attempt = 0; attempt < 2; attempt++) {
+         int stripes = stripes(connection, storeId, productName);
+         if (stripes > 0) {
+            int taken = take(connection, storeId, productName, units, stripes);
+            if (taken != NOT_STRIPED) return taken;
+         } else if (update(connection, String.format(
+               "UPDATE Product SET numberOfUnits = numberOfUnits - %d " +
+               "WHERE storeID = '%s' AND productName = '%s' AND numberOfUnits >= %d",
+               units, storeId, productName, units)) == 1) {
+            return TAKEN;
+         }
+         forget(connection);
+      }
+      return SOLD_OUT;
+   }
+
+   /**
+    * Splits the stock of a product evenly over a number of stripes, moving
+    * the units of its current stripes back first.
+    *
+    * @throws java.sql.SQLException when the product does not exist or an update failed
+    */
+   public static void stripe(Connection connection, String storeId, String productName, int stripes) throws SQLException {
+      if (stripes < 1) throw new SQLException("A product needs at least one stripe");
+      String product = String.format("storeID = '%s' AND productName = '%s'", storeId, productName);
+      connection.setAutoCommit(false);
+      try {
+         long pool = gather(connection, product);
+         long share = pool / stripes;
+         Jdbc.execute(connection, "DELETE FROM ProductStripes WHERE " + product);
+         Jdbc.execute(connection, String.format(
+            "INSERT INTO ProductStripes (storeID, productName, stripe, units) " +
+            "SELECT storeID, productName, s, %d FROM Product, generate_series(0, %d) s WHERE %s",
+            share, stripes - 1, product));
+         Jdbc.execute(connection, String.format(
+            "UPDATE Product SET numberOfUnits = %d WHERE %s", pool - share * stripes, product));
+         end(connection, true, true);
+      } catch (SQLException e) {
+         end(connection, true, false);
+         throw e;
+      }
+      forget(connection);
+   }
+
+   /**
+    * Moves the units of a product's stripes back into its Product row and
+    * drops the stripes.
+    *
+    * @throws java.sql.SQLException when the product does not exist or an update failed
+    */
+   public static void unstripe(Connection connection, String storeId, String productName) throws SQLException {
+      String product = String.format("storeID = '%s' AND productName = '%s'", storeId, productName);
+      connection.setAutoCommit(false);
+      try {
+         long pool = gather(connection, product);
+         Jdbc.execute(connection, "DELETE FROM ProductStripes WHERE " + product);
+         Jdbc.execute(connection, String.format(
+            "UPDATE Product SET numberOfUnits = %d WHERE %s", pool, product));
+         end(connection, true, true);
+      } catch (SQLException e) {
+         end(connection, true, false);
+         throw e;
+      }
+      forget(connection);
+   }
+
+   // locks the product and its stripes, returns the units of both
+   private static long gather(Connection connection, String product) throws SQLException {
+      List<List<String>> row = Jdbc.query(connection,
+         "SELECT numberOfUnits FROM Product WHERE " + product + " FOR UPDATE");
+      if (row.isEmpty()) throw new SQLException("No such product");
+      long pool = Long.parseLong(row.get(0).get(0).trim());
+      for (List<String> s : Jdbc.query(connection,
+            "SELECT units FROM ProductStripes WHERE " + product + " FOR UPDATE"))
+         pool += Long.parseLong(s.get(0).trim());
+      return pool;
+   }
+
+   // the striped products of the database are read again on the next order
+   private static synchronized void forget(Connection connection) throws SQLException {
+      loadedAt.remove(connection.getMetaData().getURL());
+   }
+
+   private static int update(Connection connection, String sql) throws SQLException {
+      Statement stmt = connection.createStatement();
+      try {
+         return stmt.executeUpdate(sql);
+      } finally {
+         stmt.close();
+      }
+   }
+
+   // commits or rolls back a transaction this class started
+   private static void end(Connection connection, boolean own, boolean commit) throws SQLException {
+      if (!own) return;
+      try {
+         if (commit) connection.commit();
+         else connection.rollback();
+      } finally {
+         connection.setAutoCommit(true);
+      }
+   }
+
+   /**
+    * Stripes or unstripes a product outside the interactive program, for
+    * example before a promotion starts.
+    *
+    * @param args <dbname> <port> <user> stripe <storeID> <productName> <stripes> | unstripe <storeID> <productName>
+    */
+   public static void main(String[] args) {
+      if (args.length < 6) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            StockStripes.class.getName () +
+            " <dbname> <port> <user> stripe <storeID> <productName> <stripes> | unstripe <storeID> <productName>");
+         return;
+      }//end if
+
+      Retail esql = null;
+      Connection connection = null;
+      try {
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Retail(args[0], args[1], args[2], "");
+         connection = esql.newConnection();
+         if (args[3].equals("stripe") && args.length == 7) {
+            stripe(connection, args[4], args[5], Integer.parseInt(args[6]));
+         } else if (args[3].equals("unstripe")) {
+            unstripe(connection, args[4], args[5]);
+         } else {
+            System.err.println("Unknown command: " + args[3]);
+            return;
+         }
+         esql.printResult(Catalog.PRODUCT_COLUMNS, Jdbc.query(connection, String.format(
+            "SELECT storeID, productName, numberOfUnits, pricePerUnit FROM ProductStock " +
+            "WHERE storeID = '%s' AND productName = '%s'", args[4], args[5])));
+      } catch (Exception e) {
+         System.err.println (e.getMessage ());
+      } finally {
+         try {
+            if (connection != null) connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }
+         if (esql != null) esql.cleanup();
+      }
+   }//end main
+
+}//end StockStripes
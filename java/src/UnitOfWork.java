@@ -0,0 +1,157 @@
+/*
+ * Unit Of Work
+ * ============
+ *
+ * Runs the statements of a multi-step edit as one transaction, retried
+ * when the database aborts it to resolve a conflict.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class collects the statements of an edit, such as a product's
+ * units, price and audit row, and runs them on one connection as a JDBC
+ * batch in a single transaction, so the edit costs one round trip and one
+ * commit and is applied completely or not at all.
+ *
+ * When the transaction fails with a serialization failure (SQLSTATE 40001)
+ * or a deadlock (40P01) it is rolled back and run again, up to
+ * retail.transactionRetries (5) times, after a backoff of
+ * retail.retryBackoffMillis (10) doubling with every attempt, with jitter so
+ * that the sessions that collided do not collide again. Other failures are
+ * rolled back and thrown. Keys the statements carry, see IdAllocator, are
+ * reserved before and reused by the retries.
+ *
+ */
+public class UnitOfWork {
+
+   static final int RETRIES = Integer.getInteger("retail.transactionRetries", 5);
+   static final long BACKOFF_MILLIS = Long.getLong("retail.retryBackoffMillis", 10);
+
+   private final int isolation;
+   private final List<String> statements = new ArrayList<String>();
+
+   // attempts the last run took
+   int attempts = 0;
+
+   /**
+    * @param isolation the isolation level, one of the Connection.TRANSACTION_ constants
+    */
+   public UnitOfWork(int isolation) {
+      this.isolation = isolation;
+   }
+
+   /**
+    * A unit of work at the database's default level, read committed.
+    */
+   public UnitOfWork() {
+      this(Connection.TRANSACTION_READ_COMMITTED);
+   }
+
+   /**
+    * @param sql a statement that returns no rows, run after the ones added before
+    * @return this unit of work
+    */
+   public UnitOfWork add(String sql) {
+      statements.add(sql);
+      return this;
+   }
+
+   /**
+    * @return true if no statement was added
+    */
+   public boolean isEmpty() {
+      return statements.isEmpty();
+   }
+
+   // the statements, in the order they run
+   List<String> statements() {
+      return statements;
+   }
+
+   public String toString() {
+      StringBuilder sql = new StringBuilder();
+      for (String statement : statements)
+         sql.append(sql.length() == 0 ? "" : "; ").append(statement);
+      return sql.toString();
+   }
+
+   /**
+    * Runs the statements in one transaction, retrying it on conflicts.
+    *
+    * @param connection a connection in autocommit mode, left in it
+    * @return the update count of every statement
+    * @throws java.sql.SQLException when a statement failed, nothing was changed then
+    */
+   public int[] run(Connection connection) throws SQLException {
+      int previous = connection.getTransactionIsolation();
+      try {
+         for (attempts = 1; ; attempts++) {
+            connection.setAutoCommit(false);
+            if (isolation != previous) connection.setTransactionIsolation(isolation);
+            Statement stmt = connection.createStatement();
+            try {
+               for (String sql : statements)
+                  stmt.addBatch(sql);
+               int[] counts = stmt.executeBatch();
+               connection.commit();
+               return counts;
+            } catch (SQLException e) {
+               rollback(connection);
+               if (!retryable(e) || attempts > RETRIES) throw e;
+            } finally {
+               stmt.close();
+            }
+            backoff(attempts);
+         }
+      } finally {
+         connection.setAutoCommit(true);
+         if (isolation != previous) connection.setTransactionIsolation(previous);
+      }
+   }
+
+   /**
+    * @return true if the failure was a serialization failure or a deadlock,
+    *         which succeed when run again
+    */
+   static boolean retryable(SQLException e) {
+      for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+         String state = cause.getSQLState();
+         if ("40001".equals(state) || "40P01".equals(state)) return true;
+         // drivers before the 7.4 protocol report no SQLSTATE, only the message
+         String message = cause.getMessage();
+         if (state == null && message != null &&
+             (message.contains("could not serialize access") || message.contains("deadlock detected")))
+            return true;
+      }
+      return false;
+   }
+
+   private static void backoff(int attempt) throws SQLException {
+      long ceiling = BACKOFF_MILLIS << Math.min(attempt - 1, 10);
+      try {
+         Thread.sleep(ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting to retry a transaction");
+      }
+   }
+
+   private static void rollback(Connection connection) {
+      try {
+         connection.rollback();
+      } catch (SQLException e) {
+         // the connection is gone, the server rolled back
+      }
+   }
+
+}//end UnitOfWork
@@ -0,0 +1,242 @@
+/*
+ * Workload Scheduler
+ * ==================
+ *
+ * Keeps reporting queries from slowing down the statements that serve
+ * orders, by giving each kind of work its own connections, threads and
+ * admission limit.
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class runs the statements of an operation according to the
+ * operation's workload class:
+ *
+ *   TRANSACTIONAL  short statements of the order path. They run on the
+ *                  session's own connection in the session's thread, once
+ *                  admitted.
+ *   ANALYTICAL     reports over whole tables. They run on a small pool of
+ *                  dedicated connections and threads. Every statement is
+ *                  limited by statement_timeout, and the whole operation by
+ *                  a deadline: once it passes, or when the waiting session
+ *                  is interrupted, the running statement is cancelled with
+ *                  Statement.cancel() and the session gets an SQLException.
+ *
+ * A class admits at most a fixed number of statements at a time. Work
+ * beyond that waits a short while and is then rejected, rather than
+ * queueing up in front of the database. Rejected work surfaces as an
+ * SQLException like any failed statement.
+ *
+ * Configured through system properties:
+ *   retail.analyticalOperations   operations run as analytical, comma separated
+ *                                 (default viewStoreOrders,viewPopularProducts,viewPopularCustomers,viewCatchments)
+ *   retail.analyticalConnections  connections and threads of the analytical class (default 2)
+ *   retail.analyticalQueue        analytical statements waiting for a thread (default 4)
+ *   retail.analyticalTimeoutMillis statement_timeout of analytical statements (default 30000)
+ *   retail.analyticalDeadlineMillis time an analytical operation may take, 0 for none (default 60000)
+ *   retail.transactionalSlots     transactional statements running at a time (default 64)
+ *   retail.admissionWaitMillis    how long work waits to be admitted (default 2000)
+ *
+ */
+public class WorkloadScheduler {
+
+   public enum WorkloadClass {
+      TRANSACTIONAL,
+      ANALYTICAL
+   }
+
+   /**
+    * The statements run on behalf of an operation.
+    */
+   public interface Work<T> {
+      /**
+       * @param stmt a statement on the connection chosen for the work's class
+       * @return the result handed back to the caller
+       * @throws java.sql.SQLException when a statement failed
+       */
+      T run(Statement stmt) throws SQLException;
+   }
+
+   static final String DEFAULT_ANALYTICAL =
+      "viewStoreOrders,viewPopularProducts,viewPopularCustomers,viewCatchments";
+
+   private static final Set<String> analytical = new HashSet<String>(Arrays.asList(
+      System.getProperty("retail.analyticalOperations", DEFAULT_ANALYTICAL).split("\\s*,\\s*")));
+
+   private static final Map<String, WorkloadScheduler> schedulers = new HashMap<String, WorkloadScheduler>();
+
+   /**
+    * @param operation the operation name, as set in Retail.operation
+    * @return the workload class of the operation
+    */
+   public static WorkloadClass classify(String operation) {
+      return analytical.contains(operation) ? WorkloadClass.ANALYTICAL : WorkloadClass.TRANSACTIONAL;
+   }
+
+   /**
+    * @return the scheduler shared by all sessions of the process on that database
+    */
+   public static synchronized WorkloadScheduler shared(String url, String user, String passwd) {
+      String key = url + "|" + user;
+      WorkloadScheduler scheduler = schedulers.get(key);
+      if (scheduler == null) {
+         scheduler = new WorkloadScheduler(url, user, passwd);
+         schedulers.put(key, scheduler);
+      }
+      return scheduler;
+   }
+
+   private final long admissionWaitMillis;
+   private final Semaphore transactionalSlots;
+
+   private final ConnectionPool analyticalConnections;
+   private final ExecutorService analyticalThreads;
+   private final Semaphore analyticalSlots;
+   private final int analyticalTimeoutMillis;
+   private final long analyticalDeadlineMillis;
+
+   public WorkloadScheduler(String url, String user, String passwd) {
+      this.admissionWaitMillis = Long.getLong("retail.admissionWaitMillis", 2000);
+      this.transactionalSlots = new Semaphore(Integer.getInteger("retail.transactionalSlots", 64), true);
+
+      int connections = Integer.getInteger("retail.analyticalConnections", 2);
+      this.analyticalConnections = ConnectionPool.shared("analytical", url, user, passwd, connections);
+      this.analyticalThreads = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "analytical");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      // running plus waiting for a thread
+      this.analyticalSlots = new Semaphore(connections + Integer.getInteger("retail.analyticalQueue", 4), true);
+      this.analyticalTimeoutMillis = Integer.getInteger("retail.analyticalTimeoutMillis", 30000);
+      this.analyticalDeadlineMillis = Long.getLong("retail.analyticalDeadlineMillis", 60000);
+   }
+
+   /**
+    * Runs work under its workload class.
+    *
+    * @param workloadClass the class of the operation the work belongs to
+    * @param own the session's connection, used by transactional work
+    * @param work the statements to run
+    * @return the result of the work
+    * @throws java.sql.SQLException when the work failed, timed out or was not admitted
+    */
+   public <T> T run(WorkloadClass workloadClass, Connection own, Work<T> work) throws SQLException {
+      if (workloadClass == WorkloadClass.ANALYTICAL)
+         return runAnalytical(work);
+
+      admit(transactionalSlots, workloadClass);
+      try {
+         Statement stmt = own.createStatement();
+         try {
+            return work.run(stmt);
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         transactionalSlots.release();
+      }
+   }
+
+   private void admit(Semaphore slots, WorkloadClass workloadClass) throws SQLException {
+      try {
+         if (slots.tryAcquire(admissionWaitMillis, TimeUnit.MILLISECONDS)) return;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      throw new SQLException("Too many " + workloadClass.name().toLowerCase() + " operations running, try again later");
+   }
+
+   private <T> T runAnalytical(final Work<T> work) throws SQLException {
+      admit(analyticalSlots, WorkloadClass.ANALYTICAL);
+      // the running statement, cancelled when the caller stops waiting for it
+      final Statement[] running = new Statement[1];
+      Future<T> result;
+      try {
+         result = analyticalThreads.submit(new Callable<T>() {
+            public T call() throws Exception {
+               Connection connection = analyticalConnections.borrow(admissionWaitMillis);
+               if (connection == null)
+                  throw new SQLException("Too many analytical operations running, try again later");
+               boolean clean = false;
+               try {
+                  Statement stmt = connection.createStatement();
+                  try {
+                     stmt.execute("SET statement_timeout = " + analyticalTimeoutMillis);
+                     synchronized (running) {
+                        running[0] = stmt;
+                     }
+                     T value = work.run(stmt);
+                     clean = true;
+                     return value;
+                  } finally {
+                     synchronized (running) {
+                        running[0] = null;
+                     }
+                     stmt.close();
+                  }
+               } finally {
+                  if (clean) analyticalConnections.release(connection);
+                  else analyticalConnections.discard(connection);
+               }
+            }
+         });
+      } catch (RuntimeException e) {
+         analyticalSlots.release();
+         throw new SQLException(e.getMessage());
+      }
+
+      try {
+         // each statement of the work ends at statement_timeout, the work may run several
+         if (analyticalDeadlineMillis <= 0) return result.get();
+         return result.get(analyticalDeadlineMillis, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+         cancel(running, result);
+         throw new SQLException(String.format("Analytical operation cancelled after %d ms", analyticalDeadlineMillis));
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause().getMessage());
+      } catch (InterruptedException e) {
+         cancel(running, result);
+         Thread.currentThread().interrupt();
+         throw new SQLException("Analytical operation cancelled");
+      } finally {
+         analyticalSlots.release();
+      }
+   }
+
+   private static void cancel(Statement[] running, Future<?> result) {
+      result.cancel(false);
+      synchronized (running) {
+         try {
+            if (running[0] != null) running[0].cancel();
+         } catch (SQLException e) {
+            // the statement finished or its connection is gone, either way it stopped
+         }
+      }
+   }
+
+}//end WorkloadScheduler
@@ -2,5 +2,8 @@
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_triggers.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
-
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_fulfillment.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/id_blocks.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_stripes.sql
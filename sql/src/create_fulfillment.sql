@@ -0,0 +1,41 @@
+-- Warehouse stock and shipment waves, see FulfillmentScheduler. Run after
+-- load_data.sql: it extends ProductSupplyRequests, which is loaded without
+-- a column list.
+
+DROP TABLE IF EXISTS WarehouseStock CASCADE;
+DROP TABLE IF EXISTS ShipmentWaves CASCADE;
+
+-- Units of a product a warehouse holds. Reserved units belong to a planned
+-- shipment wave and leave the warehouse when the wave completes.
+CREATE TABLE WarehouseStock ( warehouseID integer NOT NULL,
+                              productName char(30) NOT NULL,
+                              unitsOnHand integer NOT NULL,
+                              unitsReserved integer NOT NULL DEFAULT 0,
+                              PRIMARY KEY(warehouseID, productName),
+                              FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID),
+                              CHECK (unitsReserved >= 0 AND unitsReserved <= unitsOnHand)
+);
+
+CREATE TABLE ShipmentWaves ( waveID serial,
+                             warehouseID integer NOT NULL,
+                             status char(10) NOT NULL DEFAULT 'planned',  -- 'planned' or 'completed'
+                             createdOn timestamp NOT NULL DEFAULT now(),
+                             completedOn timestamp,
+                             PRIMARY KEY(waveID),
+                             FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID)
+);
+
+-- Requests are 'pending' until planned into a wave, 'waved' until the wave
+-- completes and 'delivered' after. Rows inserted without a status, such as
+-- the loaded history, were delivered when they were made.
+ALTER TABLE ProductSupplyRequests ADD COLUMN status char(10) NOT NULL DEFAULT 'delivered';
+ALTER TABLE ProductSupplyRequests ADD COLUMN waveID integer REFERENCES ShipmentWaves(waveID);
+
+CREATE INDEX productsupplyrequests_pending ON ProductSupplyRequests (warehouseID, productName, requestNumber)
+WHERE status = 'pending';
+CREATE INDEX productsupplyrequests_wave ON ProductSupplyRequests (waveID);
+
+-- Opening stock: every warehouse carries every product sold in any store.
+INSERT INTO WarehouseStock (warehouseID, productName, unitsOnHand)
+SELECT W.warehouseID, P.productName, 1000
+FROM Warehouse W, (SELECT DISTINCT productName FROM Product) P;
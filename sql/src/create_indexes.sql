@@ -0,0 +1,3 @@
+-- Orders by time, for the last day of orders the sales window of every
+-- Retail process reads at startup
+CREATE INDEX orders_ordertime ON Orders (orderTime);
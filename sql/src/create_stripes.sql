@@ -0,0 +1,74 @@
+-- Stock stripes of hot products, see StockStripes. Run after
+-- create_triggers.sql: it replaces product_changed.
+
+DROP VIEW IF EXISTS ProductStock;
+DROP TABLE IF EXISTS ProductStripes CASCADE;
+
+-- Units of a product split off into slots that orders take from one at a
+-- time, so buyers of the same product do not all wait for the lock of its
+-- Product row. The stock of a product is its Product.numberOfUnits, the
+-- units not split off, plus the units of its stripes.
+CREATE TABLE ProductStripes ( storeID integer NOT NULL,
+                              productName char(30) NOT NULL,
+                              stripe integer NOT NULL,
+                              units integer NOT NULL,
+                              PRIMARY KEY(storeID, productName, stripe),
+                              FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName) ON DELETE CASCADE,
+                              CHECK (units >= 0)
+);
+
+-- The columns of Product with the stock summed over the stripes, read this
+-- instead of Product wherever the number of units matters.
+CREATE VIEW ProductStock AS
+SELECT P.storeID, P.productName, P.numberOfUnits + COALESCE(S.units, 0) AS numberOfUnits, P.pricePerUnit
+FROM Product P LEFT JOIN (SELECT storeID, productName, SUM(units) AS units
+                          FROM ProductStripes GROUP BY storeID, productName) S
+     ON S.storeID = P.storeID AND S.productName = P.productName;
+
+-- product_changed of create_triggers.sql, logging the summed stock. The sum
+-- is what the writer sees: takes from other stripes that commit alongside
+-- are missing, so the feeds only use a change to re-read ProductStock.
+CREATE OR REPLACE FUNCTION product_changed() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'DELETE' THEN
+      INSERT INTO ProductChanges (storeID, productName, numberOfUnits, pricePerUnit)
+      VALUES (OLD.storeID, OLD.productName, NULL, NULL);
+   ELSIF TG_OP = 'INSERT'
+         OR NEW.numberOfUnits IS DISTINCT FROM OLD.numberOfUnits
+         OR NEW.pricePerUnit IS DISTINCT FROM OLD.pricePerUnit THEN
+      INSERT INTO ProductChanges (storeID, productName, numberOfUnits, pricePerUnit)
+      VALUES (NEW.storeID, NEW.productName,
+              NEW.numberOfUnits + COALESCE((SELECT SUM(units) FROM ProductStripes
+                                            WHERE storeID = NEW.storeID AND productName = NEW.productName), 0),
+              NEW.pricePerUnit);
+   END IF;
+   -- no NOTIFY, see create_triggers.sql
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Orders taking units from a stripe change the stock as well; the stock
+-- logged misses concurrent takes from other stripes, see above
+CREATE OR REPLACE FUNCTION stripe_changed() RETURNS trigger AS $$
+DECLARE
+   r record;
+BEGIN
+   IF TG_OP = 'DELETE' THEN
+      r := OLD;
+   ELSIF TG_OP = 'UPDATE' AND NEW.units = OLD.units THEN
+      RETURN NULL;
+   ELSE
+      r := NEW;
+   END IF;
+   -- nothing to log when the product itself was deleted
+   INSERT INTO ProductChanges (storeID, productName, numberOfUnits, pricePerUnit)
+   SELECT storeID, productName, numberOfUnits, pricePerUnit FROM ProductStock
+   WHERE storeID = r.storeID AND productName = r.productName;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS stripe_changes ON ProductStripes;
+CREATE TRIGGER stripe_changes
+AFTER INSERT OR UPDATE OR DELETE ON ProductStripes
+FOR EACH ROW EXECUTE PROCEDURE stripe_changed();
@@ -0,0 +1,61 @@
+DROP TABLE IF EXISTS ProductChanges CASCADE;
+
+-- One row per change of a product's stock or price, written by the trigger
+-- below and read by the Retail inventory feed, which polls it by changeID
+-- and re-reads the changed products.
+-- The feeds delete rows older than retail.feedRetentionMinutes (60); with
+-- the feeds' pruning turned off, run from cron instead
+--    DELETE FROM ProductChanges WHERE changedOn < now() - interval '1 hour';
+CREATE TABLE ProductChanges ( changeID bigserial,
+                              storeID integer NOT NULL,
+                              productName char(30) NOT NULL,
+                              numberOfUnits integer,     -- NULL when the product was deleted
+                              pricePerUnit float,
+                              changedOn timestamp NOT NULL DEFAULT now(),
+                              -- the writing transaction, whose changeIDs can commit
+                              -- after higher ones; the feeds re-read them by it
+                              txid bigint NOT NULL DEFAULT txid_current(),
+                              PRIMARY KEY(changeID)
+);
+
+CREATE INDEX productchanges_txid ON ProductChanges (txid);
+
+CREATE OR REPLACE FUNCTION product_changed() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'DELETE' THEN
+      INSERT INTO ProductChanges (storeID, productName, numberOfUnits, pricePerUnit)
+      VALUES (OLD.storeID, OLD.productName, NULL, NULL);
+   ELSIF TG_OP = 'INSERT'
+         OR NEW.numberOfUnits IS DISTINCT FROM OLD.numberOfUnits
+         OR NEW.pricePerUnit IS DISTINCT FROM OLD.pricePerUnit THEN
+      INSERT INTO ProductChanges (storeID, productName, numberOfUnits, pricePerUnit)
+      VALUES (NEW.storeID, NEW.productName, NEW.numberOfUnits, NEW.pricePerUnit);
+   END IF;
+   -- no NOTIFY: it would take the server-wide notification lock at the commit
+   -- of every order, the feeds poll for the new rows instead
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS product_changes ON Product;
+CREATE TRIGGER product_changes
+AFTER INSERT OR UPDATE OR DELETE ON Product
+FOR EACH ROW EXECUTE PROCEDURE product_changed();
+
+-- Stores and warehouses change rarely, listeners re-read them on this notification
+CREATE OR REPLACE FUNCTION store_changed() RETURNS trigger AS $$
+BEGIN
+   NOTIFY store_changes;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS store_changes ON Store;
+CREATE TRIGGER store_changes
+AFTER INSERT OR UPDATE OR DELETE ON Store
+FOR EACH STATEMENT EXECUTE PROCEDURE store_changed();
+
+DROP TRIGGER IF EXISTS warehouse_changes ON Warehouse;
+CREATE TRIGGER warehouse_changes
+AFTER INSERT OR UPDATE OR DELETE ON Warehouse
+FOR EACH STATEMENT EXECUTE PROCEDURE store_changed();
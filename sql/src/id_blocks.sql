@@ -0,0 +1,6 @@
+-- Each nextval of these sequences reserves a block of 100 keys for one
+-- Retail process, see IdAllocator. Safe to re-run; inserts that use the
+-- column default still get unique keys.
+ALTER SEQUENCE orders_orderNumber_seq INCREMENT BY 100;
+ALTER SEQUENCE productupdates_updateNumber_seq INCREMENT BY 100;
+ALTER SEQUENCE productsupplyrequests_requestNumber_seq INCREMENT BY 100;